@@ -0,0 +1,63 @@
+package org.track.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles buffers in power-of-two size classes, so that messages can be
+ * read and written without allocating a new array each time. Buffers larger
+ * than the biggest class are allocated on demand and simply dropped when
+ * released.
+ */
+public class BufferPool {
+
+	private static final int MIN_SHIFT = 8;
+	private static final int MAX_SHIFT = 20;
+
+	private final ConcurrentLinkedQueue[] classes;
+	private final AtomicInteger[] counts;
+	private final int buffersPerClass;
+
+	public BufferPool() {
+		this(64);
+	}
+
+	public BufferPool(int buffersPerClass) {
+		this.buffersPerClass = buffersPerClass;
+		int size = MAX_SHIFT - MIN_SHIFT + 1;
+		this.classes = new ConcurrentLinkedQueue[size];
+		this.counts = new AtomicInteger[size];
+		for (int i = 0; i < size; i++) {
+			classes[i] = new ConcurrentLinkedQueue();
+			counts[i] = new AtomicInteger();
+		}
+	}
+
+	/** Returns an empty buffer that can hold at least size bytes. */
+	public DataOutputBuffer take(int size) {
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		if (shift > MAX_SHIFT)
+			return new DataOutputBuffer(size);
+		if (shift < MIN_SHIFT)
+			shift = MIN_SHIFT;
+		int index = shift - MIN_SHIFT;
+		DataOutputBuffer buffer = (DataOutputBuffer) classes[index].poll();
+		if (buffer == null)
+			return new DataOutputBuffer(1 << shift);
+		counts[index].decrementAndGet();
+		return buffer.reset();
+	}
+
+	public void release(DataOutputBuffer buffer) {
+		// a buffer that grew while in use is filed under what it holds now
+		int shift = 31 - Integer.numberOfLeadingZeros(buffer.getData().length);
+		if (shift < MIN_SHIFT || shift > MAX_SHIFT)
+			return;
+		int index = shift - MIN_SHIFT;
+		if (counts[index].incrementAndGet() > buffersPerClass) {
+			counts[index].decrementAndGet();
+			return;
+		}
+		classes[index].add(buffer);
+	}
+}
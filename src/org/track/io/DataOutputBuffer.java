@@ -8,6 +8,14 @@ import java.io.IOException;
 public class DataOutputBuffer extends DataOutputStream {
 
 	private static class Buffer extends ByteArrayOutputStream {
+		public Buffer() {
+			super();
+		}
+
+		public Buffer(int size) {
+			super(size);
+		}
+
 		public byte[] getData() {
 			return buf;
 		}
@@ -38,6 +46,10 @@ public class DataOutputBuffer extends DataOutputStream {
 		this(new Buffer());
 	}
 
+	public DataOutputBuffer(int size) {
+		this(new Buffer(size));
+	}
+
 	public DataOutputBuffer(Buffer buffer) {
 		super(buffer);
 		this.buffer = buffer;
@@ -0,0 +1,116 @@
+package org.track.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns small integer ids to names, such as class names or method
+ * signatures, that both ends of a connection agreed on when it was set up.
+ * While a dictionary is attached to the current thread ObjectWritable writes
+ * registered class names as varint ids and falls back to the full name for
+ * anything unregistered.
+ */
+public class NameDictionary implements Writable {
+
+	private static final ThreadLocal CURRENT = new ThreadLocal();
+
+	private List names = new ArrayList();
+	private Map ids = new HashMap();
+	private Class[] classes;
+
+	public NameDictionary() {
+	}
+
+	public static NameDictionary current() {
+		return (NameDictionary) CURRENT.get();
+	}
+
+	public static NameDictionary attach(NameDictionary dictionary) {
+		NameDictionary previous = (NameDictionary) CURRENT.get();
+		CURRENT.set(dictionary);
+		return previous;
+	}
+
+	public synchronized int add(String name) {
+		Integer id = (Integer) ids.get(name);
+		if (id == null) {
+			id = Integer.valueOf(names.size());
+			names.add(name);
+			ids.put(name, id);
+			classes = null;
+		}
+		return id.intValue();
+	}
+
+	public void addClass(Class c) {
+		while (c.isArray()) {
+			add(c.getName());
+			c = c.getComponentType();
+		}
+		add(c.getName());
+	}
+
+	public int getId(String name) {
+		Integer id = (Integer) ids.get(name);
+		return id == null ? -1 : id.intValue();
+	}
+
+	public String getName(int id) throws IOException {
+		if (id >= names.size())
+			throw new IOException("Unknown dictionary id " + id);
+		return (String) names.get(id);
+	}
+
+	public Class getClass(int id) throws IOException {
+		Class[] classes = this.classes;
+		if (classes == null) {
+			classes = new Class[names.size()];
+			this.classes = classes;
+		}
+		if (id >= classes.length)
+			throw new IOException("Unknown dictionary id " + id);
+		Class c = classes[id];
+		if (c == null) {
+			c = ObjectWritable.loadClass((String) names.get(id));
+			classes[id] = c;
+		}
+		return c;
+	}
+
+	public int size() {
+		return names.size();
+	}
+
+	/** Dictionaries are equal when they hold the same names in order. */
+	public boolean equals(Object o) {
+		if (!(o instanceof NameDictionary))
+			return false;
+		return names.equals(((NameDictionary) o).names);
+	}
+
+	public int hashCode() {
+		return names.hashCode();
+	}
+
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, names.size());
+		for (int i = 0; i < names.size(); i++) {
+			UTF8.writeString(out, (String) names.get(i));
+		}
+	}
+
+	public void readFields(DataInput in) throws IOException {
+		names.clear();
+		ids.clear();
+		classes = null;
+		int size = WritableUtils.readVInt(in);
+		for (int i = 0; i < size; i++) {
+			add(UTF8.readString(in));
+		}
+	}
+}
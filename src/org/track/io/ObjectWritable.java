@@ -5,6 +5,7 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 public class ObjectWritable implements Writable {
@@ -47,7 +48,7 @@ public class ObjectWritable implements Writable {
 	}
 
 	public void readFields(DataInput in) throws IOException {
-		readObject(in);
+		readObject(in, this);
 	}
 
 	public void write(DataOutput out) throws IOException {
@@ -62,11 +63,11 @@ public class ObjectWritable implements Writable {
 			declaredClass = NullInstance.class;
 		}
 		if (instance instanceof Writable) {
-			UTF8.writeString(out, instance.getClass().getName());
+			writeClass(out, instance.getClass());
 			((Writable) instance).write(out);
 			return;
 		}
-		UTF8.writeString(out, declaredClass.getName());
+		writeClass(out, declaredClass);
 
 		if (declaredClass.isArray()) {
 			int length = Array.getLength(instance);
@@ -87,6 +88,7 @@ public class ObjectWritable implements Writable {
 			} else if (declaredClass == Short.TYPE) {
 				out.writeShort(((Short) instance).shortValue());
 			} else if (declaredClass == Integer.TYPE) {
+				out.writeInt(((Integer) instance).intValue());
 			} else if (declaredClass == Long.TYPE) {
 				out.writeLong(((Long) instance).longValue());
 			} else if (declaredClass == Float.TYPE) {
@@ -108,16 +110,7 @@ public class ObjectWritable implements Writable {
 	public static Object readObject(DataInput in, ObjectWritable objectWritable)
 			throws IOException {
 		Object instance;
-		String className = UTF8.readString(in);
-		Class declaredClass = (Class) PRIMITIVENAMES.get(className);
-
-		if (declaredClass == null) {
-			try {
-				declaredClass = Class.forName(className);
-			} catch (ClassNotFoundException e) {
-				throw new RuntimeException(e.toString());
-			}
-		}
+		Class declaredClass = readClass(in);
 
 		if (declaredClass == NullInstance.class) {
 			NullInstance wrapper = new NullInstance();
@@ -187,20 +180,58 @@ public class ObjectWritable implements Writable {
 		}
 
 		public void readFields(DataInput in) throws IOException {
-			String className = UTF8.readString(in);
-			declaredClass = (Class) PRIMITIVENAMES.get(className);
-			if (declaredClass == null) {
-				try {
-					declaredClass = Class.forName(className);
-				} catch (ClassNotFoundException e) {
-					throw new RuntimeException();
-				}
-			}
+			declaredClass = readClass(in);
 		}
 
 		public void write(DataOutput out) throws IOException {
-			UTF8.writeString(out, declaredClass.getName());
+			writeClass(out, declaredClass);
+		}
+	}
+
+	public static void addBuiltinClasses(NameDictionary dictionary) {
+		dictionary.add(NullInstance.class.getName());
+		dictionary.add(String.class.getName());
+		dictionary.add(ObjectWritable.class.getName());
+		dictionary.add(UTF8.class.getName());
+		dictionary.add(ArrayWritable.class.getName());
+		Iterator iter = PRIMITIVENAMES.keySet().iterator();
+		while (iter.hasNext()) {
+			dictionary.add((String) iter.next());
+		}
+	}
+
+	static Class loadClass(String className) {
+		Class declaredClass = (Class) PRIMITIVENAMES.get(className);
+		if (declaredClass == null) {
+			try {
+				declaredClass = Class.forName(className);
+			} catch (ClassNotFoundException e) {
+				throw new RuntimeException(e.toString());
+			}
 		}
+		return declaredClass;
+	}
+
+	private static void writeClass(DataOutput out, Class c) throws IOException {
+		NameDictionary dictionary = NameDictionary.current();
+		if (dictionary == null) {
+			UTF8.writeString(out, c.getName());
+			return;
+		}
+		int id = dictionary.getId(c.getName());
+		WritableUtils.writeVInt(out, id + 1);
+		if (id < 0)
+			UTF8.writeString(out, c.getName());
+	}
+
+	private static Class readClass(DataInput in) throws IOException {
+		NameDictionary dictionary = NameDictionary.current();
+		if (dictionary == null)
+			return loadClass(UTF8.readString(in));
+		int id = WritableUtils.readVInt(in) - 1;
+		if (id < 0)
+			return loadClass(UTF8.readString(in));
+		return dictionary.getClass(id);
 	}
 
 }
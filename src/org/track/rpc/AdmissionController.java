@@ -0,0 +1,44 @@
+package org.track.rpc;
+
+/**
+ * Decides whether a server should take on new calls, after CoDel. Handlers
+ * report how long each call waited in the queue. Once waits have stayed above
+ * the target for a whole interval, the queue is a standing queue that only
+ * adds latency, and new calls are turned away until one again gets through
+ * in under the target or the queue runs empty.
+ */
+class AdmissionController {
+
+	private final long targetNanos;
+	private final long intervalNanos;
+
+	// updated by every handler without locking; a lost update only shifts
+	// the moment of switching by one call
+	private volatile long firstAbove;
+	private volatile boolean overloaded;
+
+	public AdmissionController(long targetMillis, long intervalMillis) {
+		this.targetNanos = targetMillis * 1000000;
+		this.intervalNanos = intervalMillis * 1000000;
+	}
+
+	public void observe(long sojournNanos, long now) {
+		if (sojournNanos < targetNanos) {
+			firstAbove = 0;
+			overloaded = false;
+		} else if (firstAbove == 0) {
+			firstAbove = now + intervalNanos;
+		} else if (now - firstAbove >= 0) {
+			overloaded = true;
+		}
+	}
+
+	public void queueEmpty() {
+		firstAbove = 0;
+		overloaded = false;
+	}
+
+	public boolean admit() {
+		return !overloaded;
+	}
+}
@@ -0,0 +1,50 @@
+package org.track.rpc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.track.io.Writable;
+import org.track.io.WritableFactories;
+import org.track.io.WritableUtils;
+
+/**
+ * The body of a batch frame: the number of params and then each in turn.
+ * The client writes one from the params it was given, and the server reads
+ * one knowing only the class its params all share.
+ */
+class BatchParam implements Writable {
+
+	private Class paramClass;
+	private Writable[] params;
+
+	/** Creates a batch to be read, of params of the given class. */
+	public BatchParam(Class paramClass) {
+		this.paramClass = paramClass;
+	}
+
+	public BatchParam(Writable[] params) {
+		this.params = params;
+	}
+
+	public Writable[] get() {
+		return params;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, params.length);
+		for (int i = 0; i < params.length; i++) {
+			params[i].write(out);
+		}
+	}
+
+	public void readFields(DataInput in) throws IOException {
+		if (paramClass == null)
+			throw new IllegalStateException("No param class to read into");
+		params = new Writable[WritableUtils.readVInt(in)];
+		for (int i = 0; i < params.length; i++) {
+			params[i] = WritableFactories.newInstance(paramClass);
+			params[i].readFields(in);
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package org.track.rpc;
+
+/**
+ * Holds calls between the connections that read them and the handlers that
+ * execute them. Implementations must be safe for many concurrent producers
+ * and consumers and must never block: a full queue refuses the call and the
+ * server pauses reading from the offering connection instead.
+ */
+public interface CallQueue {
+
+	public boolean offer(Object call);
+
+	public Object poll();
+
+	public int size();
+
+	public int capacity();
+}
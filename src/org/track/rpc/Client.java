@@ -1,29 +1,101 @@
 package org.track.rpc;
 
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.BufferedInputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.rmi.RemoteException;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+import org.track.io.BufferPool;
+import org.track.io.DataInputBuffer;
+import org.track.io.DataOutputBuffer;
+import org.track.io.NameDictionary;
 import org.track.io.UTF8;
 import org.track.io.Writable;
+import org.track.io.WritableUtils;
 
 public class Client {
 
+	private static final int HEDGE_MIN_SAMPLES = 16;
+
+	// how long a ring reader waits before checking its server is still there
+	private static final long RING_PROBE_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(100);
+
+	private static final Map LOCAL_ADDRESSES = new ConcurrentHashMap();
+
+	private static final ThreadLocal SIZINGBUFFER = new ThreadLocal() {
+		protected Object initialValue() {
+			return new DataOutputBuffer();
+		}
+	};
+
 	private Hashtable connections = new Hashtable();
 	private Class valueClass;
 	private int timeout;
-	private int counter;
+	private AtomicInteger counter = new AtomicInteger();
 	private boolean running = true;
+	private boolean virtualThreads;
+	private boolean handshake = true;
+	private boolean framing = true;
+	private int compressionThreshold;
+	private int reactorCount;
+	private int poolSize = 1;
+	private int largeCallThreshold;
+	private int heartbeatInterval;
+	private Reactor[] reactors;
+	private int currentReactor;
+	private HashedWheelTimer timer;
+	private ExecutorService pinger;
+	private ConcurrentHashMap timeoutCounts = new ConcurrentHashMap();
+	private int maxBatchBytes;
+	private long lingerMicros;
+	private AtomicLong flushes = new AtomicLong();
+	private AtomicLong flushedMessages = new AtomicLong();
+	private BufferPool bufferPool = new BufferPool();
+	private Map unixSockets = new ConcurrentHashMap();
+	private int ringCapacity;
+	private String ringDirectory;
+	private Map ringDeclined = new ConcurrentHashMap();
 
 	public Client(Class valueClass) {
 		this.valueClass = valueClass;
@@ -36,38 +108,283 @@ public class Client {
 		} catch (InterruptedException e) {
 		}
 		running = false;
+		synchronized (this) {
+			if (timer != null)
+				timer.stop();
+			if (pinger != null)
+				pinger.shutdown();
+		}
 	}
 
 	public void setTimeout(int timeout) {
 		this.timeout = timeout;
 	}
 
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Disables the connection header, and with it every negotiated feature,
+	 * for talking to servers that only speak the original protocol.
+	 */
+	public void setHandshake(boolean handshake) {
+		this.handshake = handshake;
+	}
+
+	/**
+	 * Asks servers for length-prefixed frames, which let either side read a
+	 * whole message before decoding it and skip one that fails to decode.
+	 * On by default; servers that do not offer it are spoken to unframed.
+	 */
+	public void setFraming(boolean framing) {
+		this.framing = framing;
+	}
+
+	/**
+	 * When positive, asks framed servers to compress frames and compresses
+	 * calls whose serialized body is at least this many bytes. Worth it for
+	 * large, repetitive payloads over slow links. Takes effect for
+	 * connections opened afterwards.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Opens up to poolSize sockets per address and sends each call on the one
+	 * with the fewest outstanding calls, so one large request does not hold
+	 * up the small ones queued behind it.
+	 */
+	public void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	/**
+	 * When positive, calls whose serialized parameter is at least this many
+	 * bytes travel on a separate socket per address, keeping bulk payloads
+	 * off the sockets used by small latency-sensitive calls.
+	 */
+	public void setLargeCallThreshold(int largeCallThreshold) {
+		this.largeCallThreshold = largeCallThreshold;
+	}
+
+	/**
+	 * When positive, pings each framed connection that has received nothing
+	 * for this many milliseconds, and closes it if another interval passes
+	 * without a reply, failing its pending calls. Detects dead peers and
+	 * half-open sockets without waiting for calls to time out. Servers keep
+	 * answering pings while their call queue is full. Takes effect for
+	 * connections opened afterwards.
+	 */
+	public void setHeartbeatInterval(int heartbeatInterval) {
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	/**
+	 * Reaches the server at address through the Unix domain socket at path,
+	 * as set by {@link Server#setUnixSocket(String)}, instead of TCP. Such
+	 * connections are always served by the reactor threads.
+	 */
+	public void setUnixSocket(InetSocketAddress address, String path) {
+		unixSockets.put(address, path);
+	}
+
+	/**
+	 * When ringBytes is positive, connections to servers on this host ask to
+	 * carry calls through two rings of that many bytes, rounded up to a power
+	 * of two, in a file mapped by both processes, created in directory and
+	 * removed once mapped. The socket then only serves to notice the server
+	 * going away. Frames must fit in a ring. Servers that decline, as they do
+	 * unless given the same directory, are spoken to over the socket. A null
+	 * directory turns rings off. The directory should be private to the user
+	 * running both, as servers refuse ring files owned by anyone else.
+	 */
+	public void setSharedMemory(int ringBytes, String directory) {
+		if (ringBytes > MappedRing.MAX_CAPACITY)
+			throw new IllegalArgumentException("Ring of " + ringBytes
+					+ " bytes is larger than " + MappedRing.MAX_CAPACITY);
+		if (ringBytes <= 0 || directory == null) {
+			this.ringCapacity = 0;
+			this.ringDirectory = null;
+			return;
+		}
+		int capacity = MappedRing.MIN_CAPACITY;
+		while (capacity < ringBytes)
+			capacity <<= 1;
+		this.ringCapacity = capacity;
+		this.ringDirectory = new File(directory).getAbsolutePath();
+	}
+
+	/**
+	 * A positive count multiplexes every connection this client opens over
+	 * that many shared selector threads instead of a reader thread per
+	 * remote address. Takes effect for connections opened afterwards.
+	 */
+	public void setReactorCount(int reactorCount) {
+		this.reactorCount = reactorCount;
+	}
+
+	/**
+	 * Coalesces calls sent on a socket by concurrent threads into one write
+	 * and flush, bounded by maxBatchBytes and by waiting at most lingerMicros
+	 * for other callers. Reactor connections always coalesce whatever is
+	 * queued into one gathering write. Takes effect for connections opened
+	 * afterwards.
+	 */
+	public void setWriteBatching(int maxBatchBytes, long lingerMicros) {
+		this.maxBatchBytes = maxBatchBytes;
+		this.lingerMicros = lingerMicros;
+	}
+
+	/** Returns the average number of calls sent per socket write. */
+	public double getMessagesPerFlush() {
+		long count = flushes.get();
+		return count == 0 ? 0 : (double) flushedMessages.get() / count;
+	}
+
+	/**
+	 * Sends param without registering a pending call, and returns once it is
+	 * written; the server sends no response and any error it hits is lost.
+	 * Servers that do not speak framed connections always reply, so there
+	 * this falls back to an ordinary call whose result, or remote error, is
+	 * discarded.
+	 */
+	public void send(Writable param, InetSocketAddress address)
+			throws IOException {
+		Call call = new Call(param);
+		Connection connection = getConnection(address, call);
+		if (connection.framed) {
+			call.flags = Frame.ONE_WAY;
+			connection.sendOneWay(call);
+			return;
+		}
+		try {
+			invoke(connection, call);
+		} catch (RemoteException e) {
+		}
+	}
+
 	public Writable call(Writable param, InetSocketAddress address)
 			throws IOException {
-		Connection connection = getConnection(address);
 		Call call = new Call(param);
+		Connection connection = getConnection(address, call);
+		invoke(connection, call);
+		return call.value;
+	}
+
+	/**
+	 * Sends params to one server in a single frame and returns their values
+	 * in order. The server runs them back to back on one handler, or with
+	 * parallel spreads them across its handlers, and answers with a single
+	 * frame. Throws a RemoteException for the first call that failed. Falls
+	 * back to separate calls on connections that are not framed.
+	 */
+	public Writable[] call(Writable[] params, InetSocketAddress address,
+			boolean parallel) throws IOException {
+		BatchCall call = new BatchCall(params, parallel);
+		Connection connection = getConnection(address, call);
+		if (!connection.framed) {
+			Writable[] values = new Writable[params.length];
+			for (int i = 0; i < params.length; i++) {
+				values[i] = call(params[i], address);
+			}
+			return values;
+		}
+		invoke(connection, call);
+		return call.values;
+	}
+
+	/**
+	 * Sends the call and waits for it to finish. Its expiry fails it once
+	 * the timeout passes, so there is no deadline to keep here.
+	 */
+	private void invoke(Connection connection, Call call) throws IOException {
 		synchronized (call) {
 			connection.sendParam(call);
-			long wait = timeout;
-			do {
+			while (!call.done) {
 				try {
-					call.wait(wait);
+					call.wait();
 				} catch (InterruptedException e) {
 				}
-				wait = timeout
-						- (System.currentTimeMillis() - call.lastActivity);
-			} while (!call.done && wait > 0);
+			}
 
 			if (call.error != null) {
 				throw new RemoteException(call.error);
-			} else if (!call.done) {
-				throw new IOException("timed out waiting for response");
-			} else {
-				return call.value;
+			} else if (call.failure != null) {
+				throw call.failure;
 			}
 		}
 	}
 
+	/**
+	 * Sends the call and returns immediately. The future completes from the
+	 * connection's reader thread, so callers can keep any number of calls in
+	 * flight on one connection without a thread per call.
+	 */
+	public CompletableFuture<Writable> callAsync(Writable param,
+			InetSocketAddress address) {
+		AsyncCall call = new AsyncCall(param);
+		try {
+			Connection connection = getConnection(address, call);
+			connection.sendParam(call);
+		} catch (IOException e) {
+			call.future.completeExceptionally(e);
+		}
+		return call.future;
+	}
+
+	/**
+	 * Returns how many calls to the address were abandoned because no
+	 * response arrived within the timeout.
+	 */
+	public long getTimeoutCount(InetSocketAddress address) {
+		AtomicLong count = (AtomicLong) timeoutCounts.get(address);
+		return count == null ? 0 : count.get();
+	}
+
+	private synchronized HashedWheelTimer getTimer() {
+		if (timer == null)
+			timer = new HashedWheelTimer("Client call timer", 10, 512);
+		return timer;
+	}
+
+	// pings may block on a peer that stopped reading, so they are written
+	// here rather than on the timer thread, at most one per connection
+	private synchronized ExecutorService getPinger() {
+		if (pinger == null) {
+			pinger = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+					TimeUnit.SECONDS, new SynchronousQueue(),
+					new ThreadFactory() {
+						public Thread newThread(Runnable runnable) {
+							return VirtualThreads.newThread(runnable,
+									"Client heartbeat sender", virtualThreads);
+						}
+					});
+		}
+		return pinger;
+	}
+
+	/** Returns whether address belongs to this host. */
+	static boolean isLocal(InetAddress address) {
+		if (address == null)
+			return false;
+		Boolean local = (Boolean) LOCAL_ADDRESSES.get(address);
+		if (local == null) {
+			boolean isLocal = address.isLoopbackAddress()
+					|| address.isAnyLocalAddress();
+			if (!isLocal) {
+				try {
+					isLocal = NetworkInterface.getByInetAddress(address) != null;
+				} catch (SocketException e) {
+				}
+			}
+			local = Boolean.valueOf(isLocal);
+			LOCAL_ADDRESSES.put(address, local);
+		}
+		return local.booleanValue();
+	}
+
 	private Writable makeValue() {
 		Writable value;
 		try {
@@ -80,62 +397,220 @@ public class Client {
 		return value;
 	}
 
-	private Connection getConnection(InetSocketAddress address)
-			throws IOException {
-		Connection connection;
+	private ConnectionPool getPool(InetSocketAddress address) {
 		synchronized (connections) {
-			connection = (Connection) connections.get(address);
-			if (connection == null) {
-				connection = new Connection(address);
-				connections.put(address, connection);
-				connection.start();
+			ConnectionPool pool = (ConnectionPool) connections.get(address);
+			if (pool == null) {
+				pool = new ConnectionPool(address);
+				connections.put(address, pool);
+			}
+			return pool;
+		}
+	}
+
+	private Connection getConnection(InetSocketAddress address, Call call)
+			throws IOException {
+		ConnectionPool pool = getPool(address);
+		if (largeCallThreshold <= 0)
+			return pool.getConnection();
+		// the lane is picked by the param's size, and whichever connection
+		// sends it reuses these bytes rather than writing the param again
+		call.encode(pool.getDictionary());
+		if (call.encoded.getLength() >= largeCallThreshold)
+			return pool.getLargeConnection();
+		return pool.getConnection();
+	}
+
+	private Connection newConnection(ConnectionPool pool) throws IOException {
+		Connection connection = null;
+		if (ringCapacity > 0 && handshake && framing
+				&& !ringDeclined.containsKey(pool.address)
+				&& (unixSockets.containsKey(pool.address) || isLocal(pool.address
+						.getAddress()))) {
+			RingConnection ring = new RingConnection(pool);
+			if (ring.ringed) {
+				connection = ring;
+			} else {
+				ringDeclined.put(pool.address, Boolean.TRUE);
+				ring.close();
 			}
 		}
+		if (connection == null) {
+			if (reactorCount > 0 || unixSockets.containsKey(pool.address)) {
+				connection = new ChannelConnection(pool, nextReactor());
+			} else {
+				connection = new SocketConnection(pool);
+			}
+		}
+		connection.start();
+		if (connection.heartbeats) {
+			getTimer().newTimeout(new Heartbeat(connection),
+					Math.max(1, heartbeatInterval / 2));
+		}
 		return connection;
 	}
 
+	private synchronized Reactor nextReactor() throws IOException {
+		if (reactors == null) {
+			reactors = new Reactor[Math.max(1, reactorCount)];
+			for (int i = 0; i < reactors.length; i++) {
+				reactors[i] = new Reactor(i);
+				reactors[i].start();
+			}
+		}
+		Reactor reactor = reactors[currentReactor];
+		currentReactor = (currentReactor + 1) % reactors.length;
+		return reactor;
+	}
+
 	public Writable[] call(Writable[] params, InetSocketAddress[] addresses)
 			throws IOException {
+		return call(params, addresses, params.length);
+	}
+
+	/**
+	 * Sends each param to the matching address and returns as soon as
+	 * required of them have answered, or all that did not fail have, or the
+	 * timeout passes. Values not yet received are null; their responses are
+	 * discarded when they arrive.
+	 */
+	public Writable[] call(Writable[] params, InetSocketAddress[] addresses,
+			int required) throws IOException {
 		if (addresses.length == 0)
 			return new Writable[0];
 
-		ParallelResults results = new ParallelResults(params.length);
+		ParallelResults results = new ParallelResults(params.length,
+				required);
 		synchronized (results) {
 			for (int i = 0; i < params.length; i++) {
 				ParallelCall call = new ParallelCall(params[i], results, i);
 				try {
-					Connection connection = getConnection(addresses[i]);
+					Connection connection = getConnection(addresses[i], call);
 					connection.sendParam(call);
 				} catch (IOException e) {
 					results.size--;
 				}
 			}
-			try {
-				results.wait(timeout);
-			} catch (InterruptedException e) {
+			long wait = timeout;
+			long start = System.currentTimeMillis();
+			while (!results.isDone() && wait > 0) {
+				try {
+					results.wait(wait);
+				} catch (InterruptedException e) {
+				}
+				wait = timeout - (System.currentTimeMillis() - start);
 			}
 
 			if (results.count == 0) {
 				throw new IOException("no responses");
 			} else {
-				return results.values;
+				return results.values.clone();
 			}
 		}
 	}
 
+	/**
+	 * Sends each param to the matching address and returns without waiting.
+	 * The callback hears of every call exactly once, from a connection or
+	 * timer thread, as soon as its value, error or timeout is known, so it
+	 * must not block.
+	 */
+	public void call(Writable[] params, InetSocketAddress[] addresses,
+			Callback callback) {
+		for (int i = 0; i < params.length; i++) {
+			StreamedCall call = new StreamedCall(params[i], callback, i);
+			try {
+				Connection connection = getConnection(addresses[i], call);
+				connection.sendParam(call);
+			} catch (IOException e) {
+				call.callFailed(e);
+			}
+		}
+	}
+
+	/**
+	 * Calls the first address and, should it not answer within the time
+	 * that the given fraction of its recent calls took, 0.95 for the 95th
+	 * percentile, sends the same call to the next address as well, and so on
+	 * down the list; a call that fails moves on at once. Returns the first
+	 * answer to arrive, so the param must be safe to run more than once.
+	 * Until an address has answered a few calls no hedge is sent on its
+	 * account.
+	 */
+	public Writable call(Writable param, InetSocketAddress[] addresses,
+			double fraction) throws IOException {
+		if (!(fraction > 0 && fraction <= 1))
+			throw new IllegalArgumentException("Bad fraction " + fraction);
+		HedgedResults results = new HedgedResults();
+		synchronized (results) {
+			long start = System.currentTimeMillis();
+			long hedgeAt = start;
+			int sent = 0;
+			while (!results.done) {
+				long now = System.currentTimeMillis();
+				long wait = timeout - (now - start);
+				if (wait <= 0)
+					break;
+				if (sent < addresses.length
+						&& (now >= hedgeAt || results.failures == sent)) {
+					InetSocketAddress address = addresses[sent++];
+					try {
+						HedgedCall call = new HedgedCall(param, results);
+						getConnection(address, call).sendParam(call);
+						hedgeAt = now + getHedgeDelay(address, fraction);
+					} catch (IOException e) {
+						results.callFailed(e);
+					}
+					continue;
+				}
+				if (results.failures == sent)
+					break;
+				if (sent < addresses.length)
+					wait = Math.min(wait, hedgeAt - now);
+				try {
+					results.wait(wait);
+				} catch (InterruptedException e) {
+				}
+			}
+
+			if (results.error != null) {
+				throw new RemoteException(results.error);
+			} else if (results.done) {
+				return results.value;
+			} else if (results.failures == sent && results.failure != null) {
+				throw results.failure;
+			} else {
+				throw new SocketTimeoutException(
+						"timed out waiting for response");
+			}
+		}
+	}
+
+	private long getHedgeDelay(InetSocketAddress address, double fraction) {
+		long nanos = getPool(address).latencies.getPercentile(fraction,
+				HEDGE_MIN_SAMPLES);
+		if (nanos < 0)
+			return timeout;
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos));
+	}
+
 	private class Call {
 		int id;
+		int flags;
 		Writable param;
 		Writable value;
 		String error;
 		long lastActivity;
+		long sent;
 		boolean done;
+		IOException failure;
+		HashedWheelTimer.Timeout expiry;
+		DataOutputBuffer encoded;
+		NameDictionary encodedWith;
 
 		protected Call(Writable param) {
 			this.param = param;
-			synchronized (Client.this) {
-				this.id = counter++;
-			}
+			this.id = counter.getAndIncrement();
 			touch();
 		}
 
@@ -143,6 +618,19 @@ public class Client {
 			notify();
 		}
 
+		/** Writes the param ahead of sending it, with dictionary attached. */
+		public void encode(NameDictionary dictionary) throws IOException {
+			NameDictionary previous = NameDictionary.attach(dictionary);
+			try {
+				DataOutputBuffer buffer = new DataOutputBuffer();
+				param.write(buffer);
+				encoded = buffer;
+				encodedWith = dictionary;
+			} finally {
+				NameDictionary.attach(previous);
+			}
+		}
+
 		public synchronized void touch() {
 			lastActivity = System.currentTimeMillis();
 		}
@@ -152,26 +640,240 @@ public class Client {
 			this.error = error;
 			this.done = true;
 		}
+
+		public synchronized void callFailed(IOException failure) {
+			this.failure = failure;
+			this.done = true;
+			notify();
+		}
+	}
+
+	private class BatchCall extends Call {
+		private Writable[] values;
+
+		public BatchCall(Writable[] params, boolean parallel) {
+			super(new BatchParam(params));
+			this.flags = parallel ? Frame.BATCH | Frame.PARALLEL : Frame.BATCH;
+		}
+
+		public void readResults(DataInput in) throws IOException {
+			Writable[] values = new Writable[WritableUtils.readVInt(in)];
+			String error = null;
+			for (int i = 0; i < values.length; i++) {
+				if (in.readBoolean()) {
+					String message = UTF8.readString(in);
+					if (error == null)
+						error = message;
+				} else {
+					values[i] = makeValue();
+					values[i].readFields(in);
+				}
+			}
+			synchronized (this) {
+				this.values = values;
+			}
+			setResult(null, error);
+		}
+	}
+
+	private class CallExpiry implements Runnable {
+		private Connection connection;
+		private Call call;
+
+		public CallExpiry(Connection connection, Call call) {
+			this.connection = connection;
+			this.call = call;
+		}
+
+		public void run() {
+			if (connection.takeCall(call.id) == null)
+				return;
+			AtomicLong count = (AtomicLong) timeoutCounts
+					.get(connection.address);
+			if (count == null) {
+				count = new AtomicLong();
+				AtomicLong existing = (AtomicLong) timeoutCounts.putIfAbsent(
+						connection.address, count);
+				if (existing != null)
+					count = existing;
+			}
+			count.incrementAndGet();
+			call.callFailed(new SocketTimeoutException(
+					"timed out waiting for response"));
+		}
+	}
+
+	private class Heartbeat implements Runnable {
+		private Connection connection;
+
+		public Heartbeat(Connection connection) {
+			this.connection = connection;
+		}
+
+		public void run() {
+			if (connection.closed || !running)
+				return;
+			long silence = System.currentTimeMillis()
+					- connection.lastReceived;
+			if (silence >= 2 * heartbeatInterval) {
+				// pinged an interval ago and still nothing
+				connection.close();
+				return;
+			}
+			if (silence >= heartbeatInterval
+					&& connection.pinging.compareAndSet(false, true))
+				getPinger().execute(new Ping(connection));
+			// checking twice an interval leaves a ping at least half an
+			// interval to be answered before the connection is given up
+			getTimer().newTimeout(this, Math.max(1, heartbeatInterval / 2));
+		}
+	}
+
+	private class Ping implements Runnable {
+		private Connection connection;
+
+		public Ping(Connection connection) {
+			this.connection = connection;
+		}
+
+		public void run() {
+			try {
+				connection.sendHeartbeat();
+			} catch (IOException e) {
+				connection.close();
+			} finally {
+				connection.pinging.set(false);
+			}
+		}
+	}
+
+	private class AsyncCall extends Call {
+		private CompletableFuture<Writable> future;
+
+		public AsyncCall(Writable param) {
+			super(param);
+			this.future = new CompletableFuture<Writable>();
+		}
+
+		public void callComplete() {
+			if (error != null) {
+				future.completeExceptionally(new RemoteException(error));
+			} else {
+				future.complete(value);
+			}
+		}
+
+		public void callFailed(IOException failure) {
+			future.completeExceptionally(failure);
+		}
 	}
 
 	private static class ParallelResults {
 		private Writable[] values;
 		private int size;
+		private int required;
 		private int count;
 
-		public ParallelResults(int size) {
+		public ParallelResults(int size, int required) {
 			this.values = new Writable[size];
 			this.size = size;
+			this.required = required;
+		}
+
+		public boolean isDone() {
+			return count >= required || count == size;
 		}
 
 		public synchronized void callComplete(ParallelCall call) {
 			values[call.index] = call.value;
 			count++;
-			if (count == size)
+			if (isDone())
+				notify();
+		}
+
+		public synchronized void callFailed(ParallelCall call) {
+			size--;
+			if (isDone())
 				notify();
 		}
 	}
 
+	/**
+	 * Receives the results of {@link Client#call(Writable[],
+	 * InetSocketAddress[], Callback)} one at a time.
+	 */
+	public interface Callback {
+
+		/**
+		 * Called with the value for params[index], or with why there is
+		 * none: a RemoteException for an error raised by the server.
+		 */
+		public void callComplete(int index, Writable value, IOException failure);
+	}
+
+	private class StreamedCall extends Call {
+		private Callback callback;
+		private int index;
+
+		public StreamedCall(Writable param, Callback callback, int index) {
+			super(param);
+			this.callback = callback;
+			this.index = index;
+		}
+
+		public void callComplete() {
+			if (error != null) {
+				callback.callComplete(index, null, new RemoteException(error));
+			} else {
+				callback.callComplete(index, value, null);
+			}
+		}
+
+		public void callFailed(IOException failure) {
+			callback.callComplete(index, null, failure);
+		}
+	}
+
+	private static class HedgedResults {
+		private Writable value;
+		private String error;
+		private boolean done;
+		private int failures;
+		private IOException failure;
+
+		public synchronized void callComplete(HedgedCall call) {
+			if (done)
+				return;
+			value = call.value;
+			error = call.error;
+			done = true;
+			notify();
+		}
+
+		public synchronized void callFailed(IOException failure) {
+			failures++;
+			this.failure = failure;
+			notify();
+		}
+	}
+
+	private class HedgedCall extends Call {
+		private HedgedResults results;
+
+		public HedgedCall(Writable param, HedgedResults results) {
+			super(param);
+			this.results = results;
+		}
+
+		public void callComplete() {
+			results.callComplete(this);
+		}
+
+		public void callFailed(IOException failure) {
+			results.callFailed(failure);
+		}
+	}
+
 	private class ParallelCall extends Call {
 
 		private ParallelResults results;
@@ -187,19 +889,355 @@ public class Client {
 			results.callComplete(this);
 		}
 
+		public void callFailed(IOException failure) {
+			results.callFailed(this);
+		}
+
 	}
 
-	private class Connection extends Thread {
+	private class ConnectionPool {
 		private InetSocketAddress address;
+		private Connection[] connections;
+		private Connection large;
+		private NameDictionary dictionary;
+		private LatencyHistogram latencies = new LatencyHistogram();
+
+		public ConnectionPool(InetSocketAddress address) {
+			this.address = address;
+			this.connections = new Connection[Math.max(1, poolSize)];
+		}
+
+		public synchronized Connection getConnection() throws IOException {
+			Connection best = null;
+			int empty = -1;
+			for (int i = 0; i < connections.length; i++) {
+				Connection connection = connections[i];
+				if (connection == null) {
+					if (empty < 0)
+						empty = i;
+				} else if (best == null
+						|| connection.outstanding.get() < best.outstanding
+								.get()) {
+					best = connection;
+				}
+			}
+			// grow the pool only once every open socket is busy
+			if (empty >= 0 && (best == null || best.outstanding.get() > 0)) {
+				best = newConnection(this);
+				connections[empty] = best;
+			}
+			return best;
+		}
+
+		public synchronized NameDictionary getDictionary() {
+			return dictionary;
+		}
+
+		/**
+		 * Returns the dictionary its connections share, replaced by the one
+		 * given if that differs, as after the server restarted. Sharing one
+		 * lets a param written ahead with it go out on any of them.
+		 */
+		public synchronized NameDictionary share(NameDictionary dictionary) {
+			if (!dictionary.equals(this.dictionary))
+				this.dictionary = dictionary;
+			return this.dictionary;
+		}
+
+		public synchronized Connection getLargeConnection() throws IOException {
+			if (large == null)
+				large = newConnection(this);
+			return large;
+		}
+
+		public synchronized void remove(Connection connection) {
+			if (large == connection)
+				large = null;
+			for (int i = 0; i < connections.length; i++) {
+				if (connections[i] == connection)
+					connections[i] = null;
+			}
+		}
+	}
+
+	private abstract class Connection {
+		protected ConnectionPool pool;
+		protected InetSocketAddress address;
+		protected IntCallMap calls = new IntCallMap();
+		protected AtomicInteger outstanding = new AtomicInteger();
+		protected NameDictionary dictionary;
+		protected boolean framed;
+		protected FrameCodec codec;
+		protected boolean heartbeats;
+		protected volatile long lastReceived = System.currentTimeMillis();
+		protected AtomicBoolean pinging = new AtomicBoolean();
+		protected volatile boolean closed;
+		protected String ringPath;
+		protected boolean ringed;
+
+		public Connection(ConnectionPool pool) {
+			this.pool = pool;
+			this.address = pool.address;
+		}
+
+		/**
+		 * Opens a blocking channel to the server, over its Unix domain socket
+		 * if one is known.
+		 */
+		protected SocketChannel openChannel() throws IOException {
+			String path = (String) unixSockets.get(address);
+			SocketChannel channel;
+			try {
+				if (path != null) {
+					channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+				} else {
+					channel = SocketChannel.open();
+				}
+			} catch (UnsupportedOperationException e) {
+				throw new IOException("Unix domain sockets are not supported");
+			}
+			try {
+				if (path != null) {
+					channel.connect(UnixDomainSocketAddress.of(path));
+				} else {
+					channel.socket().connect(address, timeout);
+					channel.socket().setTcpNoDelay(true);
+					channel.socket().setSoTimeout(timeout);
+				}
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			return channel;
+		}
+
+		protected void writeHeader(SocketChannel channel) throws IOException {
+			InputStream in;
+			OutputStream out;
+			if (channel.getRemoteAddress() instanceof InetSocketAddress) {
+				in = channel.socket().getInputStream();
+				out = channel.socket().getOutputStream();
+			} else {
+				// no socket view, so no read timeout either
+				in = Channels.newInputStream(channel);
+				out = Channels.newOutputStream(channel);
+			}
+			writeHeader(new DataOutputStream(new BufferedOutputStream(out)),
+					new DataInputStream(new BufferedInputStream(in)));
+		}
+
+		protected void writeHeader(DataOutputStream out, DataInputStream in)
+				throws IOException {
+			int flags = ConnectionHeader.DICTIONARY;
+			if (framing)
+				flags |= ConnectionHeader.FRAMED;
+			if (framing && compressionThreshold > 0)
+				flags |= ConnectionHeader.COMPRESSED;
+			if (framing && heartbeatInterval > 0)
+				flags |= ConnectionHeader.HEARTBEAT;
+			if (framing && ringPath != null)
+				flags |= ConnectionHeader.RING;
+			ConnectionHeader header = new ConnectionHeader(flags);
+			header.setRingPath(ringPath);
+			header.write(out);
+			out.flush();
+			ConnectionHeader reply = new ConnectionHeader();
+			reply.readFields(in);
+			if (reply.has(ConnectionHeader.DICTIONARY)) {
+				NameDictionary read = new NameDictionary();
+				read.readFields(in);
+				dictionary = pool.share(read);
+			}
+			framed = reply.has(ConnectionHeader.FRAMED);
+			if (reply.has(ConnectionHeader.COMPRESSED))
+				codec = new FrameCodec(compressionThreshold);
+			heartbeats = reply.has(ConnectionHeader.HEARTBEAT);
+			ringed = reply.has(ConnectionHeader.RING);
+		}
+
+		protected void writeHeartbeat(DataOutputBuffer buffer)
+				throws IOException {
+			Frame.begin(buffer, 0, Frame.HEARTBEAT);
+			Frame.finish(buffer, 0);
+		}
+
+		/**
+		 * Writes the call's param, as the bytes it was sized by if they were
+		 * written with this connection's dictionary. They are dropped once
+		 * sent.
+		 */
+		protected void writeParam(DataOutput out, Call call)
+				throws IOException {
+			DataOutputBuffer encoded = call.encoded;
+			call.encoded = null;
+			if (encoded != null && call.encodedWith == dictionary)
+				out.write(encoded.getData(), 0, encoded.getLength());
+			else
+				call.param.write(out);
+		}
+
+		/** Encodes call into buffer, which must be empty. */
+		protected void writeCall(DataOutputBuffer buffer, Call call)
+				throws IOException {
+			NameDictionary previous = NameDictionary.attach(dictionary);
+			try {
+				if (framed) {
+					// tell the server how long we will wait, so it can drop
+					// the call once nobody is waiting for it
+					int flags = call.flags;
+					if ((flags & Frame.ONE_WAY) == 0)
+						flags |= Frame.DEADLINE;
+					Frame.begin(buffer, call.id, flags);
+					if ((flags & Frame.DEADLINE) != 0) {
+						long waited = System.currentTimeMillis()
+								- call.lastActivity;
+						buffer.writeInt((int) Math.max(1, timeout - waited));
+					}
+					writeParam(buffer, call);
+					Frame.finish(buffer, 0);
+					if (codec != null)
+						codec.compress(buffer);
+					// the server would drop the connection over it
+					Frame.checkLength(buffer.getLength()
+							- Frame.HEADER_LENGTH);
+				} else {
+					buffer.writeInt(call.id);
+					writeParam(buffer, call);
+				}
+			} finally {
+				NameDictionary.attach(previous);
+			}
+		}
+
+		/** Decodes the body of a response frame and completes its call. */
+		protected void readResult(Call call, int flags, byte[] data,
+				int offset, int length, DataInputBuffer in) {
+			DataOutputBuffer body = null;
+			try {
+				if ((flags & Frame.COMPRESSED) != 0) {
+					if (codec == null)
+						throw new IOException("Unexpected compressed frame");
+					body = codec.decompress(data, offset, length, bufferPool);
+					in.reset(body.getData(), body.getLength());
+				} else {
+					in.reset(data, offset, length);
+				}
+				if ((flags & Frame.BATCH) != 0 && call instanceof BatchCall) {
+					((BatchCall) call).readResults(in);
+				} else {
+					int status = in.readUnsignedByte();
+					if (status == Frame.BUSY) {
+						call.callFailed(new ServerBusyException(UTF8
+								.readString(in)));
+						return;
+					} else if (status != Frame.OK) {
+						call.setResult(null, UTF8.readString(in));
+					} else {
+						Writable value = makeValue();
+						value.readFields(in);
+						call.setResult(value, null);
+					}
+				}
+			} catch (IOException e) {
+				call.callFailed(e);
+				return;
+			} finally {
+				if (body != null)
+					bufferPool.release(body);
+			}
+			call.callComplete();
+		}
+
+		protected void addCall(Call call) throws IOException {
+			outstanding.incrementAndGet();
+			call.sent = System.nanoTime();
+			calls.put(call.id, call);
+			// close may have failed the pending calls just before this one
+			if (closed && takeCall(call.id) != null)
+				throw new IOException("Connection to " + address + " closed");
+			call.expiry = getTimer().newTimeout(new CallExpiry(this, call),
+					timeout);
+		}
+
+		protected Call takeCall(int id) {
+			Call call = (Call) calls.remove(id);
+			if (call != null)
+				outstanding.decrementAndGet();
+			return call;
+		}
+
+		protected Call removeCall(int id) {
+			Call call = takeCall(id);
+			if (call != null) {
+				if (call.expiry != null)
+					call.expiry.cancel();
+				pool.latencies.record(System.nanoTime() - call.sent);
+			}
+			return call;
+		}
+
+		/**
+		 * Closes the connection after call could not be sent. Returns whether
+		 * the caller must still fail the call; if close or a response took it
+		 * first it has already been failed or answered.
+		 */
+		protected boolean abandonCall(Call call) {
+			Call taken = call == null ? null : takeCall(call.id);
+			if (taken != null && taken.expiry != null)
+				taken.expiry.cancel();
+			close();
+			return call == null || taken != null;
+		}
+
+		public abstract void start();
+
+		/**
+		 * Sends the call and registers it for its response. Throws only if
+		 * the call is no longer registered and the caller must fail it.
+		 */
+
+		public abstract void sendParam(Call call) throws IOException;
+
+		/** Sends a call that the server will not answer; framed only. */
+		public abstract void sendOneWay(Call call) throws IOException;
+
+		public abstract void sendHeartbeat() throws IOException;
+
+		/**
+		 * Stops using the connection and fails every call still waiting on
+		 * it, so callers learn of the loss now rather than at their timeout.
+		 */
+		public void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+			}
+			pool.remove(this);
+			Object[] pending = calls.removeAll();
+			for (int i = 0; i < pending.length; i++) {
+				Call call = (Call) pending[i];
+				outstanding.decrementAndGet();
+				if (call.expiry != null)
+					call.expiry.cancel();
+				call.callFailed(new IOException("Connection to " + address
+						+ " closed"));
+			}
+		}
+	}
+
+	private class SocketConnection extends Connection implements Runnable {
 		private Socket socket;
 		private DataInputStream in;
 		private DataOutputStream out;
-		private Hashtable calls = new Hashtable();
 		private Call readingCall;
 		private Call writingCall;
+		private WriteBatcher batcher;
+		private DataInputBuffer body = new DataInputBuffer();
+		private Thread thread;
 
-		public Connection(InetSocketAddress address) throws IOException {
-			this.address = address;
+		public SocketConnection(ConnectionPool pool) throws IOException {
+			super(pool);
 			this.socket = new Socket(address.getAddress(), address.getPort());
 			socket.setSoTimeout(timeout);
 			this.in = new DataInputStream(new BufferedInputStream(
@@ -207,6 +1245,7 @@ public class Client {
 						public int read(byte[] buf, int off, int len)
 								throws IOException {
 							int value = super.read(buf, off, len);
+							lastReceived = System.currentTimeMillis();
 							if (readingCall != null) {
 								readingCall.touch();
 							}
@@ -223,13 +1262,24 @@ public class Client {
 							}
 						}
 					}));
-			this.setDaemon(true);
-			this.setName("Client connection to "
-					+ address.getAddress().getHostAddress() + ":"
-					+ address.getPort());
+			if (handshake)
+				writeHeader(out, in);
+			if (maxBatchBytes > 0) {
+				this.batcher = new WriteBatcher(socket.getOutputStream(),
+						maxBatchBytes, lingerMicros, flushes, flushedMessages);
+			}
+			this.thread = VirtualThreads.newThread(this,
+					"Client connection to "
+							+ address.getAddress().getHostAddress() + ":"
+							+ address.getPort(), virtualThreads);
+		}
+
+		public void start() {
+			thread.start();
 		}
 
 		public void run() {
+			NameDictionary.attach(dictionary);
 			try {
 				while (running) {
 					int id;
@@ -238,24 +1288,37 @@ public class Client {
 					} catch (SocketTimeoutException e) {
 						continue;
 					}
+					if (framed) {
+						readFrame(id);
+						continue;
+					}
 
-					Call call = (Call) calls.remove(new Integer(id));
-					boolean isError = in.readBoolean();
-					if (isError) {
-						UTF8 utf8 = new UTF8();
-						utf8.readFields(in);
-						call.setResult(null, utf8.toString());
-					} else {
-						Writable value = makeValue();
-						try {
-							readingCall = call;
+					// a call that already timed out is read and dropped
+					Call call = removeCall(id);
+					String error = null;
+					Writable value = null;
+					try {
+						readingCall = call;
+						if (in.readBoolean()) {
+							UTF8 utf8 = new UTF8();
+							utf8.readFields(in);
+							error = utf8.toString();
+						} else {
+							value = makeValue();
 							value.readFields(in);
-						} finally {
-							readingCall = null;
 						}
-						call.setResult(value, null);
+					} catch (IOException e) {
+						// no longer pending, so close would not fail it
+						if (call != null)
+							call.callFailed(e);
+						throw e;
+					} finally {
+						readingCall = null;
+					}
+					if (call != null) {
+						call.setResult(value, error);
+						call.callComplete();
 					}
-					call.callComplete();
 
 				}
 			} catch (Exception e) {
@@ -265,9 +1328,7 @@ public class Client {
 		}
 
 		public void close() {
-			synchronized (connections) {
-				connections.remove(address);
-			}
+			super.close();
 			try {
 				socket.close();
 			} catch (IOException e) {
@@ -275,25 +1336,508 @@ public class Client {
 		}
 
 		public void sendParam(Call call) throws IOException {
+			// a call that cannot be encoded, or is too large for a frame,
+			// fails before it is registered and leaves the connection open
+			DataOutputBuffer buffer = null;
+			if (batcher != null || framed)
+				buffer = encode(call);
+			addCall(call);
+			boolean error = true;
+			try {
+				if (buffer != null) {
+					send(buffer, call);
+				} else {
+					synchronized (out) {
+						NameDictionary previous = NameDictionary
+								.attach(dictionary);
+						try {
+							writingCall = call;
+							out.writeInt(call.id);
+							writeParam(out, call);
+							out.flush();
+						} finally {
+							writingCall = null;
+							NameDictionary.attach(previous);
+						}
+					}
+					flushes.incrementAndGet();
+					flushedMessages.incrementAndGet();
+				}
+				error = false;
+			} catch (IOException e) {
+				error = false;
+				if (abandonCall(call))
+					throw e;
+			} finally {
+				if (error)
+					close();
+			}
+		}
+
+		public void sendOneWay(Call call) throws IOException {
+			DataOutputBuffer buffer = encode(call);
+			boolean error = true;
+			try {
+				send(buffer, call);
+				error = false;
+			} finally {
+				if (error)
+					close();
+			}
+		}
+
+		public void sendHeartbeat() throws IOException {
+			DataOutputBuffer buffer = new DataOutputBuffer();
+			writeHeartbeat(buffer);
+			send(buffer, null);
+		}
+
+		private DataOutputBuffer encode(Call call) throws IOException {
+			DataOutputBuffer buffer = (DataOutputBuffer) SIZINGBUFFER.get();
+			buffer.reset();
+			writeCall(buffer, call);
+			return buffer;
+		}
+
+		private void send(DataOutputBuffer buffer, Call call)
+				throws IOException {
+			if (batcher != null) {
+				batcher.write(buffer.getData(), buffer.getLength());
+				return;
+			}
+			synchronized (out) {
+				try {
+					writingCall = call;
+					out.write(buffer.getData(), 0, buffer.getLength());
+					out.flush();
+				} finally {
+					writingCall = null;
+				}
+			}
+			flushes.incrementAndGet();
+			flushedMessages.incrementAndGet();
+		}
+
+		private void readFrame(int length) throws IOException {
+			Frame.checkLength(length);
+			int id = in.readInt();
+			int flags = in.readUnsignedByte();
+			if ((flags & Frame.HEARTBEAT) != 0) {
+				in.skipBytes(length);
+				return;
+			}
+			// a call that already timed out is read and dropped
+			Call call = removeCall(id);
+			DataOutputBuffer frame = bufferPool.take(length);
+			try {
+				try {
+					readingCall = call;
+					frame.write(in, length);
+				} catch (IOException e) {
+					// no longer pending, so close would not fail it
+					if (call != null)
+						call.callFailed(e);
+					throw e;
+				} finally {
+					readingCall = null;
+				}
+				if (call != null)
+					readResult(call, flags, frame.getData(), 0, frame
+							.getLength(), body);
+			} finally {
+				bufferPool.release(frame);
+			}
+		}
+	}
+
+	private class ChannelConnection extends Connection {
+		private SocketChannel channel;
+		private SelectionKey key;
+		private Reactor reactor;
+		private ByteBuffer input = ByteBuffer.allocate(8192);
+		private DataInputBuffer decoder = new DataInputBuffer();
+		private LinkedList outgoing = new LinkedList();
+
+		public ChannelConnection(ConnectionPool pool, Reactor reactor)
+				throws IOException {
+			super(pool);
+			this.reactor = reactor;
+			this.channel = openChannel();
+			try {
+				if (handshake)
+					writeHeader(channel);
+				channel.configureBlocking(false);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		public void start() {
+			reactor.register(this);
+		}
+
+		public void sendParam(Call call) throws IOException {
+			ByteBuffer data = encode(call);
+			addCall(call);
+			enqueue(data, call);
+		}
+
+		public void sendOneWay(Call call) throws IOException {
+			enqueue(encode(call), null);
+		}
+
+		public void sendHeartbeat() throws IOException {
+			DataOutputBuffer buffer = new DataOutputBuffer();
+			writeHeartbeat(buffer);
+			enqueue(ByteBuffer.wrap(buffer.getData(), 0, buffer.getLength()),
+					null);
+		}
+
+		private ByteBuffer encode(Call call) throws IOException {
+			DataOutputBuffer buffer = new DataOutputBuffer();
+			writeCall(buffer, call);
+			return ByteBuffer.wrap(buffer.getData(), 0, buffer.getLength());
+		}
+
+		private void enqueue(ByteBuffer data, Call call) throws IOException {
 			boolean error = true;
 			try {
-				calls.put(new Integer(call.id), call);
-				synchronized (out) {
+				synchronized (outgoing) {
+					outgoing.addLast(data);
+					// anything already queued is being written by the reactor
+					if (outgoing.size() == 1 && !writeOutgoing())
+						reactor.requestWrite(this);
+				}
+				error = false;
+			} catch (IOException e) {
+				error = false;
+				if (abandonCall(call))
+					throw e;
+			} finally {
+				if (error)
+					close();
+			}
+		}
+
+		private boolean writeOutgoing() throws IOException {
+			synchronized (outgoing) {
+				while (!outgoing.isEmpty()) {
+					ByteBuffer[] buffers = (ByteBuffer[]) outgoing
+							.toArray(new ByteBuffer[outgoing.size()]);
+					channel.write(buffers);
+					flushes.incrementAndGet();
+					while (!outgoing.isEmpty()
+							&& !((ByteBuffer) outgoing.getFirst())
+									.hasRemaining()) {
+						outgoing.removeFirst();
+						flushedMessages.incrementAndGet();
+					}
+					if (!outgoing.isEmpty())
+						return false;
+				}
+				return true;
+			}
+		}
+
+		public void readAndProcess() throws IOException {
+			if (!input.hasRemaining()) {
+				ByteBuffer larger = ByteBuffer.allocate(input.capacity() << 1);
+				input.flip();
+				larger.put(input);
+				input = larger;
+			}
+			if (channel.read(input) < 0)
+				throw new EOFException();
+			lastReceived = System.currentTimeMillis();
+			int consumed = framed ? readFrames() : readResponses();
+			if (consumed > 0) {
+				input.flip();
+				input.position(consumed);
+				input.compact();
+			}
+		}
+
+		private int readFrames() throws IOException {
+			int consumed = 0;
+			NameDictionary previous = NameDictionary.attach(dictionary);
+			try {
+				while (true) {
+					int available = input.position() - consumed;
+					if (available < Frame.HEADER_LENGTH)
+						break;
+					int length = Frame.checkLength(Frame.getInt(input
+							.array(), consumed));
+					if (available < Frame.HEADER_LENGTH + length)
+						break;
+					int id = Frame.getInt(input.array(), consumed + 4);
+					int flags = input.array()[consumed + 8] & 0xff;
+					Call call = (flags & Frame.HEARTBEAT) != 0 ? null
+							: removeCall(id);
+					if (call != null)
+						readResult(call, flags, input.array(), consumed
+								+ Frame.HEADER_LENGTH, length, decoder);
+					consumed += Frame.HEADER_LENGTH + length;
+				}
+			} finally {
+				NameDictionary.attach(previous);
+			}
+			return consumed;
+		}
+
+		private int readResponses() throws IOException {
+			// like the server, a response is complete once it decodes without
+			// running off the end of what has been read
+			int consumed = 0;
+			NameDictionary previous = NameDictionary.attach(dictionary);
+			try {
+				while (consumed < input.position()) {
+					decoder.reset(input.array(), consumed, input.position()
+							- consumed);
+					int id;
+					Writable value = null;
+					String error = null;
 					try {
-						writingCall = call;
-						out.writeInt(call.id);
-						call.param.write(out);
-						out.flush();
-					} finally {
-						writingCall = null;
+						id = decoder.readInt();
+						if (decoder.readBoolean()) {
+							error = UTF8.readString(decoder);
+						} else {
+							value = makeValue();
+							value.readFields(decoder);
+						}
+					} catch (EOFException e) {
+						break;
+					}
+					consumed = decoder.getPosition();
+					Call call = removeCall(id);
+					if (call != null) {
+						call.setResult(value, error);
+						call.callComplete();
 					}
 				}
+			} finally {
+				NameDictionary.attach(previous);
+			}
+			return consumed;
+		}
+
+		public void close() {
+			super.close();
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Sends calls through a ring in a file it maps together with the server,
+	 * and takes responses from the ring beside it. The socket it opens to
+	 * negotiate the rings is then only checked for the server closing it.
+	 */
+	private class RingConnection extends Connection implements Runnable {
+		private SocketChannel control;
+		private MappedRing requests;
+		private MappedRing responses;
+		private ByteBuffer probe = ByteBuffer.allocate(64);
+		private DataInputBuffer body = new DataInputBuffer();
+		private Thread thread;
+
+		public RingConnection(ConnectionPool pool) throws IOException {
+			super(pool);
+			File file = File.createTempFile(Server.RING_PREFIX, ".ring",
+					new File(ringDirectory));
+			try {
+				MappedByteBuffer map = MappedRing.map(file.getPath(),
+						ringCapacity);
+				this.requests = new MappedRing(map, ringCapacity, false);
+				this.responses = new MappedRing(map, ringCapacity, true);
+				this.ringPath = file.getPath();
+				this.control = openChannel();
+				try {
+					writeHeader(control);
+					control.configureBlocking(false);
+				} catch (IOException e) {
+					control.close();
+					throw e;
+				}
+			} finally {
+				// the server has mapped it by now, or never will
+				file.delete();
+			}
+			this.thread = VirtualThreads.newThread(this, "Client ring to "
+					+ address.getAddress().getHostAddress() + ":"
+					+ address.getPort(), virtualThreads);
+		}
+
+		public void start() {
+			thread.start();
+		}
+
+		public void run() {
+			NameDictionary.attach(dictionary);
+			try {
+				while (running && !closed) {
+					int length = responses.read(RING_PROBE_NANOS);
+					if (length < 0) {
+						// calls never use the socket, so it only ever closes
+						probe.clear();
+						if (control.read(probe) < 0)
+							break;
+						continue;
+					}
+					lastReceived = System.currentTimeMillis();
+					byte[] data = responses.getRecord();
+					int id = Frame.getInt(data, 4);
+					int flags = data[8] & 0xff;
+					if ((flags & Frame.HEARTBEAT) != 0)
+						continue;
+					Call call = removeCall(id);
+					if (call != null)
+						readResult(call, flags, data, Frame.HEADER_LENGTH,
+								length - Frame.HEADER_LENGTH, body);
+				}
+			} catch (Exception e) {
+			} finally {
+				close();
+			}
+		}
+
+		public void sendParam(Call call) throws IOException {
+			DataOutputBuffer buffer = encode(call);
+			addCall(call);
+			write(buffer, call);
+		}
+
+		public void sendOneWay(Call call) throws IOException {
+			write(encode(call), null);
+		}
+
+		public void sendHeartbeat() throws IOException {
+			DataOutputBuffer buffer = new DataOutputBuffer();
+			writeHeartbeat(buffer);
+			write(buffer, null);
+		}
+
+		// a frame too large for the ring fails before it is registered, and
+		// leaves the connection open
+		private DataOutputBuffer encode(Call call) throws IOException {
+			DataOutputBuffer buffer = (DataOutputBuffer) SIZINGBUFFER.get();
+			buffer.reset();
+			writeCall(buffer, call);
+			if (!requests.fits(buffer.getLength()))
+				throw new IOException("Call of " + buffer.getLength()
+						+ " bytes does not fit a ring of " + ringCapacity);
+			return buffer;
+		}
+
+		private void write(DataOutputBuffer buffer, Call call)
+				throws IOException {
+			boolean error = true;
+			try {
+				requests.write(buffer.getData(), buffer.getLength());
+				flushes.incrementAndGet();
+				flushedMessages.incrementAndGet();
+				error = false;
+			} catch (IOException e) {
 				error = false;
+				if (abandonCall(call))
+					throw e;
 			} finally {
 				if (error)
 					close();
 			}
 		}
+
+		public void close() {
+			super.close();
+			if (requests != null) {
+				requests.close();
+				responses.close();
+			}
+			try {
+				if (control != null)
+					control.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private class Reactor extends Thread {
+		private Selector selector;
+		private ConcurrentLinkedQueue registrations = new ConcurrentLinkedQueue();
+		private ConcurrentLinkedQueue writes = new ConcurrentLinkedQueue();
+
+		public Reactor(int instanceNumber) throws IOException {
+			this.selector = Selector.open();
+			this.setDaemon(true);
+			this.setName("Client reactor " + instanceNumber);
+		}
+
+		public void register(ChannelConnection connection) {
+			registrations.add(connection);
+			selector.wakeup();
+		}
+
+		public void requestWrite(ChannelConnection connection) {
+			writes.add(connection);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (running) {
+				try {
+					selector.select(timeout);
+					processRequests();
+					Iterator iter = selector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = (SelectionKey) iter.next();
+						iter.remove();
+						ChannelConnection connection = (ChannelConnection) key
+								.attachment();
+						try {
+							if (key.isValid() && key.isReadable())
+								connection.readAndProcess();
+							if (key.isValid() && key.isWritable())
+								doWrite(connection);
+						} catch (Exception e) {
+							connection.close();
+						}
+					}
+				} catch (Exception e) {
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private void processRequests() {
+			ChannelConnection connection;
+			while ((connection = (ChannelConnection) registrations.poll()) != null) {
+				try {
+					connection.key = connection.channel.register(selector,
+							SelectionKey.OP_READ, connection);
+				} catch (IOException e) {
+					connection.close();
+				}
+			}
+			while ((connection = (ChannelConnection) writes.poll()) != null) {
+				// registrations are queued first, so a missing key means the
+				// connection failed to register and has been closed
+				if (connection.key != null && connection.key.isValid())
+					connection.key.interestOps(SelectionKey.OP_READ
+							| SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void doWrite(ChannelConnection connection) throws IOException {
+			synchronized (connection.outgoing) {
+				if (connection.writeOutgoing())
+					connection.key.interestOps(SelectionKey.OP_READ);
+			}
+		}
 	}
 
 }
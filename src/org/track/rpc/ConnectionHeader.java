@@ -0,0 +1,75 @@
+package org.track.rpc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.track.io.UTF8;
+import org.track.io.Writable;
+
+/**
+ * Sent by a client when it opens a connection and echoed back by the server
+ * with the subset of the requested features it accepted. Clients that never
+ * send one are served with the original protocol.
+ */
+class ConnectionHeader implements Writable {
+
+	public static final int MAGIC = 0x54524b21;
+	public static final byte VERSION = 1;
+
+	public static final int DICTIONARY = 0x01;
+	public static final int FRAMED = 0x02;
+	public static final int COMPRESSED = 0x04;
+	public static final int HEARTBEAT = 0x08;
+	/** Calls travel through rings in the file named by the header. */
+	public static final int RING = 0x10;
+
+	private byte version;
+	private int flags;
+	private String ringPath;
+
+	public ConnectionHeader() {
+	}
+
+	public ConnectionHeader(int flags) {
+		this.version = VERSION;
+		this.flags = flags;
+	}
+
+	public byte getVersion() {
+		return version;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public boolean has(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	public String getRingPath() {
+		return ringPath;
+	}
+
+	public void setRingPath(String ringPath) {
+		this.ringPath = ringPath;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(version);
+		out.writeInt(flags);
+		if (has(RING))
+			UTF8.writeString(out, ringPath);
+	}
+
+	public void readFields(DataInput in) throws IOException {
+		if (in.readInt() != MAGIC)
+			throw new IOException("Bad connection header");
+		version = in.readByte();
+		flags = in.readInt();
+		if (has(RING))
+			ringPath = UTF8.readString(in);
+	}
+}
@@ -0,0 +1,134 @@
+package org.track.rpc;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Call queue that keeps one client from starving the others. Calls are kept
+ * in a FIFO per source, either per connection or per remote host, and
+ * sources with calls waiting take turns: each is served up to its weight in
+ * calls, one by default, before the next gets a turn. Calls are first split
+ * by {@link Schedulable#getPriority() priority}, and a level is only served
+ * while every higher one is empty.
+ */
+public class FairCallQueue implements CallQueue {
+
+	private final int capacity;
+	private final boolean byHost;
+	private final Level[] levels;
+	private final Map weights = new ConcurrentHashMap();
+	private volatile int size;
+
+	private static class Source {
+		private Object key;
+		private LinkedList calls = new LinkedList();
+
+		public Source(Object key) {
+			this.key = key;
+		}
+	}
+
+	private class Level {
+		private Map sources = new HashMap();
+		private LinkedList turns = new LinkedList();
+		private int served;
+
+		public void add(Object key, Object call) {
+			Source source = (Source) sources.get(key);
+			if (source == null) {
+				source = new Source(key);
+				sources.put(key, source);
+				turns.addLast(source);
+			}
+			source.calls.addLast(call);
+		}
+
+		public Object poll() {
+			if (turns.isEmpty())
+				return null;
+			Source source = (Source) turns.getFirst();
+			Object call = source.calls.removeFirst();
+			if (source.calls.isEmpty()) {
+				// forgotten once drained, so closed connections leave nothing
+				turns.removeFirst();
+				sources.remove(source.key);
+				served = 0;
+			} else if (++served >= getWeight(source.key)) {
+				turns.addLast(turns.removeFirst());
+				served = 0;
+			}
+			return call;
+		}
+	}
+
+	public FairCallQueue(int capacity) {
+		this(capacity, 1, false);
+	}
+
+	/**
+	 * Priorities from zero to levels - 1 are told apart; others are clamped
+	 * into that range. With byHost, all connections from one remote host
+	 * share a turn.
+	 */
+	public FairCallQueue(int capacity, int levels, boolean byHost) {
+		this.capacity = capacity;
+		this.byHost = byHost;
+		this.levels = new Level[Math.max(1, levels)];
+		for (int i = 0; i < this.levels.length; i++) {
+			this.levels[i] = new Level();
+		}
+	}
+
+	/**
+	 * Sets how many calls in a row the source, a remote InetAddress when
+	 * sharing turns by host, is served per turn.
+	 */
+	public void setWeight(Object source, int weight) {
+		weights.put(source, Integer.valueOf(Math.max(1, weight)));
+	}
+
+	private int getWeight(Object source) {
+		if (source == null)
+			return 1;
+		Integer weight = (Integer) weights.get(source);
+		return weight == null ? 1 : weight.intValue();
+	}
+
+	public synchronized boolean offer(Object call) {
+		if (size >= capacity)
+			return false;
+		Object key = null;
+		int priority = 0;
+		if (call instanceof Schedulable) {
+			Schedulable schedulable = (Schedulable) call;
+			key = byHost ? schedulable.getRemoteAddress() : schedulable
+					.getConnection();
+			priority = schedulable.getPriority();
+		}
+		priority = Math.max(0, Math.min(levels.length - 1, priority));
+		levels[priority].add(key, call);
+		size++;
+		return true;
+	}
+
+	public synchronized Object poll() {
+		for (int i = levels.length - 1; i >= 0; i--) {
+			Object call = levels[i].poll();
+			if (call != null) {
+				size--;
+				return call;
+			}
+		}
+		return null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,72 @@
+package org.track.rpc;
+
+import java.io.IOException;
+
+import org.track.io.DataOutputBuffer;
+
+/**
+ * Layout of a message on a framed connection: the body length, the call id
+ * and a byte of flags, followed by the body itself. Knowing the length up
+ * front lets a reader take a whole message off the wire before decoding it,
+ * and skip one it cannot decode.
+ */
+class Frame {
+
+	public static final int HEADER_LENGTH = 9;
+	public static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+	public static final int COMPRESSED = 0x01;
+	public static final int ONE_WAY = 0x02;
+	public static final int BATCH = 0x04;
+	public static final int PARALLEL = 0x08;
+	public static final int DEADLINE = 0x10;
+	/** An empty frame that the server echoes at once, to prove it is alive. */
+	public static final int HEARTBEAT = 0x20;
+
+	/** Status byte that starts a response body. */
+	public static final int OK = 0;
+	public static final int ERROR = 1;
+	public static final int BUSY = 2;
+
+	/** Writes a header with a placeholder length, returning its offset. */
+	public static int begin(DataOutputBuffer out, int id, int flags)
+			throws IOException {
+		int start = out.getLength();
+		out.writeInt(0);
+		out.writeInt(id);
+		out.writeByte(flags);
+		return start;
+	}
+
+	/** Fills in the length of the frame begun at start. */
+	public static void finish(DataOutputBuffer out, int start) {
+		putInt(out.getData(), start, out.getLength() - start - HEADER_LENGTH);
+	}
+
+	/**
+	 * Returns the size of the optional header fields that flags announce.
+	 * They count towards the frame length but are never compressed.
+	 */
+	public static int getPrefixLength(int flags) {
+		return (flags & DEADLINE) != 0 ? 4 : 0;
+	}
+
+	public static int checkLength(int length) throws IOException {
+		if (length < 0 || length > MAX_LENGTH)
+			throw new IOException("Bad frame length " + length);
+		return length;
+	}
+
+	public static int getInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24)
+				| ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	public static void putInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,102 @@
+package org.track.rpc;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.track.io.BufferPool;
+import org.track.io.DataOutputBuffer;
+
+/**
+ * Compresses frame bodies for one connection. The deflater and inflater are
+ * kept for the life of the connection and reset between frames, so a call
+ * costs no allocation beyond a scratch array that grows to the largest frame
+ * seen. A compressed body is the original body length followed by the
+ * deflated bytes.
+ */
+class FrameCodec {
+
+	private final int threshold;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater inflater = new Inflater();
+	private byte[] deflated = new byte[1024];
+	private byte[] inflated = new byte[1024];
+
+	public FrameCodec(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Replaces the body of the single frame held in buffer, after any
+	 * header fields that follow the fixed header, with its
+	 * compressed form, unless it is smaller than the threshold or would not
+	 * shrink.
+	 */
+	public void compress(DataOutputBuffer buffer) throws IOException {
+		byte[] data = buffer.getData();
+		int flags = data[8] & 0xff;
+		int offset = Frame.HEADER_LENGTH + Frame.getPrefixLength(flags);
+		int length = buffer.getLength() - offset;
+		if (length < threshold)
+			return;
+		synchronized (deflater) {
+			deflater.reset();
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			int count = 0;
+			while (!deflater.finished()) {
+				if (count == deflated.length) {
+					if (count + 4 >= length)
+						return;
+					byte[] larger = new byte[Math.min(count << 1, length)];
+					System.arraycopy(deflated, 0, larger, 0, count);
+					deflated = larger;
+				}
+				count += deflater.deflate(deflated, count, deflated.length
+						- count);
+			}
+			if (count + 4 >= length)
+				return;
+			int id = Frame.getInt(data, 4);
+			boolean deadline = (flags & Frame.DEADLINE) != 0;
+			int remaining = deadline ? Frame.getInt(data, Frame.HEADER_LENGTH)
+					: 0;
+			buffer.reset();
+			Frame.begin(buffer, id, flags | Frame.COMPRESSED);
+			if (deadline)
+				buffer.writeInt(remaining);
+			buffer.writeInt(length);
+			buffer.write(deflated, 0, count);
+			Frame.finish(buffer, 0);
+		}
+	}
+
+	/** Returns a buffer from pool holding the original body. */
+	public DataOutputBuffer decompress(byte[] data, int offset, int length,
+			BufferPool pool) throws IOException {
+		if (length < 4)
+			throw new IOException("Bad compressed frame");
+		int size = Frame.checkLength(Frame.getInt(data, offset));
+		synchronized (inflater) {
+			if (inflated.length < size)
+				inflated = new byte[Math.max(size, inflated.length << 1)];
+			inflater.reset();
+			inflater.setInput(data, offset + 4, length - 4);
+			int count = 0;
+			try {
+				while (count < size) {
+					int n = inflater.inflate(inflated, count, size - count);
+					if (n == 0 && (inflater.finished() || inflater.needsInput()))
+						throw new IOException("Truncated compressed frame");
+					count += n;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(e.toString());
+			}
+			DataOutputBuffer body = pool.take(size);
+			body.write(inflated, 0, size);
+			return body;
+		}
+	}
+}
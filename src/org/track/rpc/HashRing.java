@@ -0,0 +1,187 @@
+package org.track.rpc;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.track.io.DataOutputBuffer;
+import org.track.io.Writable;
+
+/**
+ * Spreads keys over a set of servers so that adding or removing one moves
+ * only the keys that it owns. Each server is placed at many points on a ring
+ * of int hashes, and a key belongs to the first live server at or after the
+ * hash of the key, so the keys of a server marked down are shared among the
+ * others rather than all landing on one. Keys are hashed by their bytes, not
+ * their hashCode, so every client in every process routes a key alike.
+ */
+public class HashRing {
+
+	private final InetSocketAddress[] addresses;
+	private final int[] points;
+	private final InetSocketAddress[] owners;
+	private final Map downUntil = new ConcurrentHashMap();
+	private long retryInterval = 10000;
+
+	public HashRing(InetSocketAddress[] addresses) {
+		this(addresses, 160);
+	}
+
+	/** Places each address at about virtualNodes points on the ring. */
+	public HashRing(InetSocketAddress[] addresses, int virtualNodes) {
+		this.addresses = addresses.clone();
+		int digests = Math.max(1, (virtualNodes + 3) / 4);
+		long[] entries = new long[addresses.length * digests * 4];
+		int count = 0;
+		MessageDigest md5 = getDigest();
+		for (int i = 0; i < addresses.length; i++) {
+			String name = addresses[i].getAddress().getHostAddress() + ":"
+					+ addresses[i].getPort();
+			for (int j = 0; j < digests; j++) {
+				// every digest yields four points, as in ketama
+				byte[] digest = md5.digest((name + "-" + j).getBytes());
+				for (int k = 0; k < 16; k += 4) {
+					long point = ((digest[k] & 0xff) << 24)
+							| ((digest[k + 1] & 0xff) << 16)
+							| ((digest[k + 2] & 0xff) << 8)
+							| (digest[k + 3] & 0xff);
+					entries[count++] = (point << 32) | i;
+				}
+			}
+		}
+		Arrays.sort(entries);
+		this.points = new int[count];
+		this.owners = new InetSocketAddress[count];
+		for (int i = 0; i < count; i++) {
+			points[i] = (int) (entries[i] >> 32);
+			owners[i] = addresses[(int) entries[i]];
+		}
+	}
+
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e.toString());
+		}
+	}
+
+	/**
+	 * Sets how long a server is skipped after a call to it could not
+	 * connect, before it is tried again. Must be positive.
+	 */
+	public void setRetryInterval(long retryInterval) {
+		if (retryInterval <= 0)
+			throw new IllegalArgumentException("Bad retry interval "
+					+ retryInterval);
+		this.retryInterval = retryInterval;
+	}
+
+	/** Returns the number of servers, live or not. */
+	public int size() {
+		return addresses.length;
+	}
+
+	public InetSocketAddress[] getAddresses() {
+		return addresses.clone();
+	}
+
+	/** Returns the live server owning key, or null if all are down. */
+	public InetSocketAddress getAddress(Object key) {
+		if (points.length == 0)
+			return null;
+		int index = Arrays.binarySearch(points, hash(key));
+		if (index < 0)
+			index = -index - 1;
+		for (int i = 0; i < points.length; i++) {
+			InetSocketAddress owner = owners[(index + i) % points.length];
+			if (downUntil.isEmpty() || isUp(owner))
+				return owner;
+		}
+		return null;
+	}
+
+	/** Routes around address until it is marked up again. */
+	public void markDown(InetSocketAddress address) {
+		downUntil.put(address, Long.valueOf(Long.MAX_VALUE));
+	}
+
+	public void markUp(InetSocketAddress address) {
+		downUntil.remove(address);
+	}
+
+	public boolean isUp(InetSocketAddress address) {
+		Long until = (Long) downUntil.get(address);
+		if (until == null)
+			return true;
+		if (until.longValue() > System.currentTimeMillis())
+			return false;
+		downUntil.remove(address, until);
+		return true;
+	}
+
+	/** Skips address for the retry interval, unless it is already down. */
+	void markFailed(InetSocketAddress address) {
+		if (isUp(address)) {
+			downUntil.put(address, Long.valueOf(System.currentTimeMillis()
+					+ retryInterval));
+		}
+	}
+
+	/**
+	 * Returns the first four bytes of the MD5 of the key, as ketama does.
+	 * Strings, byte arrays, Writables, enums, boxed primitives and arrays of
+	 * these are supported.
+	 */
+	static int hash(Object key) {
+		DataOutputBuffer buffer = new DataOutputBuffer();
+		try {
+			writeKey(buffer, key);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Cannot hash key " + key
+					+ ": " + e);
+		}
+		MessageDigest md5 = getDigest();
+		md5.update(buffer.getData(), 0, buffer.getLength());
+		byte[] digest = md5.digest();
+		return ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16)
+				| ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+	}
+
+	private static void writeKey(DataOutputBuffer out, Object key)
+			throws IOException {
+		if (key == null) {
+			return;
+		} else if (key instanceof String) {
+			out.write(((String) key).getBytes(StandardCharsets.UTF_8));
+		} else if (key instanceof byte[]) {
+			out.write((byte[]) key);
+		} else if (key instanceof Writable) {
+			((Writable) key).write(out);
+		} else if (key instanceof Enum) {
+			out.write(((Enum) key).name().getBytes(StandardCharsets.UTF_8));
+		} else if (key instanceof Number || key instanceof Boolean
+				|| key instanceof Character) {
+			out.write(key.toString().getBytes(StandardCharsets.UTF_8));
+		} else if (key.getClass().isArray()) {
+			int length = Array.getLength(key);
+			for (int i = 0; i < length; i++) {
+				// length-prefixed, so {"ab", "c"} and {"a", "bc"} differ
+				DataOutputBuffer element = new DataOutputBuffer();
+				writeKey(element, Array.get(key, i));
+				out.writeInt(element.getLength());
+				out.write(element.getData(), 0, element.getLength());
+			}
+		} else {
+			// its hashCode and toString may well differ between processes
+			throw new IllegalArgumentException("Cannot route by a key of "
+					+ key.getClass());
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package org.track.rpc;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks after a delay with O(1) scheduling and cancellation. Deadlines
+ * are hashed into a fixed ring of buckets that a single thread visits once
+ * per tick, so accuracy is bounded by the tick duration. New timeouts are
+ * handed to that thread through a lock-free queue; cancelled ones are simply
+ * skipped when their bucket comes round.
+ */
+class HashedWheelTimer {
+
+	private static final int INIT = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private final long tickMillis;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final ConcurrentLinkedQueue added = new ConcurrentLinkedQueue();
+	private final Worker worker;
+	private volatile boolean running = true;
+	private long startTime;
+
+	public static class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long remainingRounds;
+		private final AtomicInteger state = new AtomicInteger(INIT);
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		public boolean cancel() {
+			return state.compareAndSet(INIT, CANCELLED);
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+
+	private static class Bucket {
+		private Timeout head;
+
+		public void add(Timeout timeout) {
+			timeout.next = head;
+			head = timeout;
+		}
+
+		public void expire(long now) {
+			Timeout previous = null;
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				boolean remove;
+				if (timeout.state.get() == CANCELLED) {
+					remove = true;
+				} else if (timeout.remainingRounds <= 0
+						&& timeout.deadline <= now) {
+					remove = true;
+					if (timeout.state.compareAndSet(INIT, EXPIRED)) {
+						try {
+							timeout.task.run();
+						} catch (Throwable e) {
+						}
+					}
+				} else {
+					remove = false;
+					timeout.remainingRounds--;
+				}
+				if (remove) {
+					if (previous == null)
+						head = next;
+					else
+						previous.next = next;
+					timeout.next = null;
+				} else {
+					previous = timeout;
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	private class Worker extends Thread {
+		private long tick;
+
+		public Worker(String name) {
+			this.setDaemon(true);
+			this.setName(name);
+		}
+
+		public void run() {
+			while (running) {
+				long deadline = startTime + (tick + 1) * tickMillis;
+				long sleep = deadline - System.currentTimeMillis();
+				if (sleep > 0) {
+					try {
+						Thread.sleep(sleep);
+					} catch (InterruptedException e) {
+					}
+					continue;
+				}
+				transferAdded();
+				wheel[(int) (tick & mask)].expire(System.currentTimeMillis());
+				tick++;
+			}
+		}
+
+		private void transferAdded() {
+			Timeout timeout;
+			while ((timeout = (Timeout) added.poll()) != null) {
+				if (timeout.state.get() == CANCELLED)
+					continue;
+				long ticks = (timeout.deadline - startTime) / tickMillis;
+				if (ticks < tick)
+					ticks = tick;
+				timeout.remainingRounds = (ticks - tick) / wheel.length;
+				wheel[(int) (ticks & mask)].add(timeout);
+			}
+		}
+	}
+
+	public HashedWheelTimer(String name, long tickMillis, int ticksPerWheel) {
+		int size = Integer.highestOneBit(Math.max(1, ticksPerWheel));
+		if (size < ticksPerWheel)
+			size <<= 1;
+		this.tickMillis = tickMillis;
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.startTime = System.currentTimeMillis();
+		this.worker = new Worker(name);
+		worker.start();
+	}
+
+	public Timeout newTimeout(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task, System.currentTimeMillis()
+				+ delayMillis);
+		added.add(timeout);
+		return timeout;
+	}
+
+	public void stop() {
+		running = false;
+		worker.interrupt();
+	}
+}
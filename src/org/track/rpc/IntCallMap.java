@@ -0,0 +1,165 @@
+package org.track.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Concurrent map from int call ids to pending calls. Keys are stored
+ * unboxed in open-addressed tables, split into segments that are locked
+ * independently so writers and the reader thread rarely meet on one lock.
+ */
+public class IntCallMap {
+
+	private static final int SEGMENTS = 16;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	private static class Segment {
+		private int[] keys;
+		private Object[] values;
+		private int size;
+
+		public Segment(int capacity) {
+			this.keys = new int[capacity];
+			this.values = new Object[capacity];
+		}
+
+		public synchronized Object put(int key, Object value) {
+			if ((size + 1) * 4 > keys.length * 3)
+				rehash(keys.length << 1);
+			int mask = keys.length - 1;
+			int index = hash(key) & mask;
+			while (values[index] != null) {
+				if (keys[index] == key) {
+					Object previous = values[index];
+					values[index] = value;
+					return previous;
+				}
+				index = (index + 1) & mask;
+			}
+			keys[index] = key;
+			values[index] = value;
+			size++;
+			return null;
+		}
+
+		public synchronized Object get(int key) {
+			int mask = keys.length - 1;
+			int index = hash(key) & mask;
+			while (values[index] != null) {
+				if (keys[index] == key)
+					return values[index];
+				index = (index + 1) & mask;
+			}
+			return null;
+		}
+
+		public synchronized Object remove(int key) {
+			int mask = keys.length - 1;
+			int index = hash(key) & mask;
+			while (values[index] != null) {
+				if (keys[index] == key) {
+					Object value = values[index];
+					values[index] = null;
+					size--;
+					closeGap(index, mask);
+					return value;
+				}
+				index = (index + 1) & mask;
+			}
+			return null;
+		}
+
+		public synchronized int size() {
+			return size;
+		}
+
+		public synchronized void removeAll(List removed) {
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != null) {
+					removed.add(values[i]);
+					values[i] = null;
+				}
+			}
+			size = 0;
+		}
+
+		// backward-shift deletion keeps probe chains intact without tombstones
+		private void closeGap(int gap, int mask) {
+			int index = (gap + 1) & mask;
+			while (values[index] != null) {
+				int home = hash(keys[index]) & mask;
+				if (((index - home) & mask) >= ((index - gap) & mask)) {
+					keys[gap] = keys[index];
+					values[gap] = values[index];
+					values[index] = null;
+					gap = index;
+				}
+				index = (index + 1) & mask;
+			}
+		}
+
+		private void rehash(int capacity) {
+			int[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new int[capacity];
+			values = new Object[capacity];
+			int mask = capacity - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldValues[i] == null)
+					continue;
+				int index = hash(oldKeys[i]) & mask;
+				while (values[index] != null)
+					index = (index + 1) & mask;
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+
+	public IntCallMap() {
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(16);
+		}
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private Segment segmentFor(int key) {
+		// call ids are sequential, so consecutive calls land on different
+		// segments
+		return segments[key & (SEGMENTS - 1)];
+	}
+
+	public Object put(int key, Object value) {
+		return segmentFor(key).put(key, value);
+	}
+
+	public Object get(int key) {
+		return segmentFor(key).get(key);
+	}
+
+	public Object remove(int key) {
+		return segmentFor(key).remove(key);
+	}
+
+	/** Removes every entry, returning the calls that were pending. */
+	public Object[] removeAll() {
+		List removed = new ArrayList();
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i].removeAll(removed);
+		}
+		return removed.toArray();
+	}
+
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < SEGMENTS; i++) {
+			size += segments[i].size();
+		}
+		return size;
+	}
+}
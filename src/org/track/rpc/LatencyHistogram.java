@@ -0,0 +1,67 @@
+package org.track.rpc;
+
+/**
+ * Recent response times to one address. Samples are counted in buckets four
+ * to each power of two, so recording one is an increment and a percentile a
+ * scan of a few hundred counters, accurate to within a quarter. Counts are
+ * halved whenever enough accumulate, letting old samples fade.
+ */
+class LatencyHistogram {
+
+	private static final int BUCKETS = 64 * 4;
+	private static final int DECAY_AT = 4096;
+
+	private final int[] counts = new int[BUCKETS];
+	private int total;
+
+	public synchronized void record(long nanos) {
+		counts[bucket(nanos)]++;
+		if (++total >= DECAY_AT) {
+			total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] >>= 1;
+				total += counts[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the time in nanoseconds within which the given fraction of
+	 * recent calls completed, or -1 while fewer than minSamples are known.
+	 * The fraction must be more than 0 and at most 1.
+	 */
+	public synchronized long getPercentile(double fraction, int minSamples) {
+		if (!(fraction > 0 && fraction <= 1))
+			throw new IllegalArgumentException("Bad fraction " + fraction);
+		if (total == 0 || total < minSamples)
+			return -1;
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return upperBound(i);
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos < 1)
+			return 0;
+		int log = 63 - Long.numberOfLeadingZeros(nanos);
+		// the two bits below the highest pick the quarter
+		int quarter = log < 2 ? 0 : (int) (nanos >>> (log - 2)) & 3;
+		return log * 4 + quarter;
+	}
+
+	private static long upperBound(int bucket) {
+		int log = bucket / 4;
+		if (log < 2)
+			return 1L << (log + 1);
+		long factor = 5 + bucket % 4;
+		// the top buckets reach past the largest long
+		if (factor > Long.MAX_VALUE >> (log - 2))
+			return Long.MAX_VALUE;
+		return factor << (log - 2);
+	}
+}
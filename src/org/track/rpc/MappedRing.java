@@ -0,0 +1,196 @@
+package org.track.rpc;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A one-way queue of frames in a memory-mapped file, for passing calls
+ * between processes on one host without a system call per message. Each
+ * record is a length and the frame bytes, padded to four bytes so a length
+ * never wraps. The producer publishes by advancing the tail and the consumer
+ * frees space by advancing the head, each on its own cache line. Neither
+ * side can wake the other, so both spin briefly and then back off to short
+ * sleeps while they wait.
+ */
+class MappedRing {
+
+	private static final VarHandle LONGS = MethodHandles
+			.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	static final int MIN_CAPACITY = 64;
+	// so that the file of two rings stays within an int
+	static final int MAX_CAPACITY = 1 << 29;
+
+	private static final int HEAD = 0;
+	private static final int TAIL = 64;
+	private static final int DATA = 128;
+
+	// spinning only holds up the other side on a single processor
+	private static final int SPINS = Runtime.getRuntime()
+			.availableProcessors() > 1 ? 2000 : 0;
+	private static final int YIELDS = 100;
+	private static final long MAX_PARK_NANOS = 1000000;
+
+	private final MappedByteBuffer buffer;
+	private final int base;
+	private final int capacity;
+	private byte[] record = new byte[256];
+	private volatile boolean closed;
+
+	/** Returns the file size that holds two rings of the given capacity. */
+	public static int getFileSize(int capacity) {
+		return 2 * (DATA + capacity);
+	}
+
+	/** Returns the capacity of each of the two rings in a file. */
+	public static int getCapacity(long fileSize) {
+		return (int) Math.min(Integer.MAX_VALUE, fileSize / 2 - DATA);
+	}
+
+	/** Maps a file holding two rings, creating or growing it as needed. */
+	public static MappedByteBuffer map(String path, int capacity)
+			throws IOException {
+		checkCapacity(capacity);
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			return map(file.getChannel(), capacity);
+		} finally {
+			file.close();
+		}
+	}
+
+	/** Maps two rings from an open file, growing it as needed. */
+	public static MappedByteBuffer map(FileChannel channel, int capacity)
+			throws IOException {
+		checkCapacity(capacity);
+		return channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				getFileSize(capacity));
+	}
+
+	/**
+	 * Returns the first or second ring in a mapped file. The capacity must be
+	 * a power of two from MIN_CAPACITY to MAX_CAPACITY.
+	 */
+	public MappedRing(MappedByteBuffer buffer, int capacity, boolean second) {
+		checkCapacity(capacity);
+		this.buffer = buffer;
+		this.capacity = capacity;
+		this.base = second ? DATA + capacity : 0;
+	}
+
+	private static void checkCapacity(int capacity) {
+		if (capacity < MIN_CAPACITY || capacity > MAX_CAPACITY
+				|| (capacity & (capacity - 1)) != 0)
+			throw new IllegalArgumentException("Bad ring capacity "
+					+ capacity);
+	}
+
+	/** Returns whether a frame of length bytes can ever be written. */
+	public boolean fits(int length) {
+		return 4 + ((length + 3) & ~3) <= capacity;
+	}
+
+	/**
+	 * Appends a frame, waiting for the consumer to make room. Safe to call
+	 * from several threads of one process.
+	 */
+	public synchronized void write(byte[] data, int length)
+			throws IOException {
+		int size = 4 + ((length + 3) & ~3);
+		if (size > capacity)
+			throw new IOException("Frame of " + length
+					+ " bytes does not fit a ring of " + capacity);
+		long tail = (long) LONGS.getOpaque(buffer, base + TAIL);
+		int spins = 0;
+		long park = 1000;
+		while (tail + size - (long) LONGS.getAcquire(buffer, base + HEAD)
+				> capacity) {
+			if (closed)
+				throw new IOException("Ring closed");
+			if (spins < SPINS) {
+				Thread.onSpinWait();
+			} else if (spins < SPINS + YIELDS) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(park);
+				park = Math.min(park << 1, MAX_PARK_NANOS);
+			}
+			spins++;
+		}
+		int offset = (int) (tail & (capacity - 1));
+		buffer.putInt(base + DATA + offset, length);
+		put(offset + 4, data, length);
+		LONGS.setRelease(buffer, base + TAIL, tail + size);
+	}
+
+	/**
+	 * Takes the next frame, returning its length, or -1 if none arrived
+	 * within maxWaitNanos. The frame is left in {@link #getRecord()} until the
+	 * next read. Only one thread may read a ring.
+	 */
+	public int read(long maxWaitNanos) throws IOException {
+		long head = (long) LONGS.getOpaque(buffer, base + HEAD);
+		long start = 0;
+		int spins = 0;
+		long park = 1000;
+		while ((long) LONGS.getAcquire(buffer, base + TAIL) == head) {
+			if (closed)
+				throw new IOException("Ring closed");
+			if (spins < SPINS) {
+				spins++;
+				Thread.onSpinWait();
+				continue;
+			} else if (spins < SPINS + YIELDS) {
+				spins++;
+				Thread.yield();
+				continue;
+			}
+			long now = System.nanoTime();
+			if (start == 0)
+				start = now;
+			else if (now - start >= maxWaitNanos)
+				return -1;
+			LockSupport.parkNanos(park);
+			park = Math.min(park << 1, MAX_PARK_NANOS);
+		}
+		int offset = (int) (head & (capacity - 1));
+		int length = Frame.checkLength(buffer.getInt(base + DATA + offset));
+		int size = 4 + ((length + 3) & ~3);
+		if (size > capacity)
+			throw new IOException("Bad ring record length " + length);
+		if (record.length < length)
+			record = new byte[Math.max(record.length << 1, length)];
+		get(offset + 4, record, length);
+		LONGS.setRelease(buffer, base + HEAD, head + size);
+		return length;
+	}
+
+	public byte[] getRecord() {
+		return record;
+	}
+
+	/** Makes waiting readers and writers give up. */
+	public void close() {
+		closed = true;
+	}
+
+	private void put(int offset, byte[] data, int length) {
+		offset &= capacity - 1;
+		int first = Math.min(length, capacity - offset);
+		buffer.put(base + DATA + offset, data, 0, first);
+		buffer.put(base + DATA, data, first, length - first);
+	}
+
+	private void get(int offset, byte[] data, int length) {
+		offset &= capacity - 1;
+		int first = Math.min(length, capacity - offset);
+		buffer.get(base + DATA + offset, data, 0, first);
+		buffer.get(base + DATA, data, first, length - first);
+	}
+}
@@ -0,0 +1,19 @@
+package org.track.rpc;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a void protocol method whose calls need no reply. A proxy sends such
+ * a call and returns as soon as it is written, and the server runs it without
+ * answering, so exceptions thrown by the method never reach the caller. Has
+ * no effect on methods that return a value.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface OneWay {
+}
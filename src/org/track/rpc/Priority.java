@@ -0,0 +1,22 @@
+package org.track.rpc;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the scheduling priority of a protocol method, on the interface or
+ * on the implementing method. Calls to methods without one have priority
+ * zero. Only queues that look at priorities, such as {@link FairCallQueue},
+ * act on it.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Priority {
+
+	/** Higher values are served first. */
+	int value();
+}
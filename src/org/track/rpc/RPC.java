@@ -3,23 +3,46 @@ package org.track.rpc;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
-
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.track.io.DataInputBuffer;
+import org.track.io.DataOutputBuffer;
+import org.track.io.NameDictionary;
 import org.track.io.ObjectWritable;
 import org.track.io.UTF8;
 import org.track.io.Writable;
+import org.track.io.WritableUtils;
 
 public class RPC {
 
 	private static Client CLIENT;
+	private static final Map SIGNATURES = new ConcurrentHashMap();
+	private static final Map LOCAL_SERVERS = new ConcurrentHashMap();
+	private static volatile boolean shortCircuit;
+	private static volatile boolean copyLocalCalls;
 
 	private static class Invocation implements Writable {
 		private String methodName;
+		private String signature;
+		private int methodId = -1;
 		private Class[] parameterClasses;
 		private Object[] parameters;
 
@@ -28,6 +51,7 @@ public class RPC {
 
 		public Invocation(Method method, Object[] parameters) {
 			this.methodName = method.getName();
+			this.signature = getSignature(method);
 			this.parameterClasses = method.getParameterTypes();
 			this.parameters = parameters;
 		}
@@ -36,6 +60,10 @@ public class RPC {
 			return methodName;
 		}
 
+		public int getMethodId() {
+			return methodId;
+		}
+
 		public Class[] getParameterClasses() {
 			return parameterClasses;
 		}
@@ -46,8 +74,17 @@ public class RPC {
 
 		@Override
 		public void write(DataOutput out) throws IOException {
-			UTF8.writeString(out, methodName);
-			out.writeInt(parameterClasses.length);
+			NameDictionary dictionary = NameDictionary.current();
+			if (dictionary == null) {
+				UTF8.writeString(out, methodName);
+				out.writeInt(parameterClasses.length);
+			} else {
+				int id = dictionary.getId(signature);
+				WritableUtils.writeVInt(out, id + 1);
+				if (id < 0)
+					UTF8.writeString(out, methodName);
+				WritableUtils.writeVInt(out, parameterClasses.length);
+			}
 			for (int i = 0; i < parameterClasses.length; i++) {
 				ObjectWritable.writeObject(out, parameters[i],
 						parameterClasses[i]);
@@ -56,8 +93,21 @@ public class RPC {
 
 		@Override
 		public void readFields(DataInput in) throws IOException {
-			methodName = UTF8.readString(in);
-			parameters = new Object[in.readInt()];
+			NameDictionary dictionary = NameDictionary.current();
+			methodId = -1;
+			if (dictionary == null) {
+				methodName = UTF8.readString(in);
+				parameters = new Object[in.readInt()];
+			} else {
+				int id = WritableUtils.readVInt(in) - 1;
+				if (id < 0) {
+					methodName = UTF8.readString(in);
+				} else {
+					methodId = id;
+					methodName = dictionary.getName(id);
+				}
+				parameters = new Object[WritableUtils.readVInt(in)];
+			}
 			parameterClasses = new Class[parameters.length];
 			ObjectWritable objectWritable = new ObjectWritable();
 			for (int i = 0; i < parameters.length; i++) {
@@ -86,77 +136,518 @@ public class RPC {
 
 		public Invoker(InetSocketAddress address) {
 			this.address = address;
-			if (CLIENT == null) {
-				CLIENT = new Client(ObjectWritable.class);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			return invoke(method, args, address);
+		}
+
+		protected Object invoke(Method method, Object[] args,
+				InetSocketAddress address) throws IOException {
+			Server local = getLocalServer(address);
+			if (local != null)
+				return invokeLocal(local, method, args);
+			if (method.getReturnType() == void.class
+					&& method.isAnnotationPresent(OneWay.class)) {
+				getClient().send(new Invocation(method, args), address);
+				return null;
+			}
+			if (method.getReturnType() == CompletableFuture.class) {
+				return getClient().callAsync(new Invocation(method, args), address)
+						.thenApply(UNWRAP);
 			}
+			ObjectWritable value = (ObjectWritable) getClient().call(
+					new Invocation(method, args), address);
+			return value.get();
+		}
+	}
 
+	private static class ShardedInvoker extends Invoker {
+		private HashRing ring;
+		private KeyExtractor keys;
+
+		public ShardedInvoker(HashRing ring, KeyExtractor keys) {
+			super(null);
+			this.ring = ring;
+			this.keys = keys;
 		}
 
 		@Override
 		public Object invoke(Object proxy, Method method, Object[] args)
 				throws Throwable {
-			ObjectWritable value = (ObjectWritable) CLIENT.call(new Invocation(
-					method, args), address);
-			return value.get();
+			Object key = keys.getKey(method, args);
+			ConnectException failure = null;
+			// each failure takes a server out for a while, so this visits
+			// every one at most once
+			for (int i = 0; i < ring.size(); i++) {
+				InetSocketAddress address = ring.getAddress(key);
+				if (address == null)
+					break;
+				try {
+					return invoke(method, args, address);
+				} catch (ConnectException e) {
+					// the call never reached the server, so it is safe to
+					// send it to the next one
+					ring.markFailed(address);
+					failure = e;
+				}
+			}
+			if (failure != null)
+				throw failure;
+			throw new ConnectException("No live server for key " + key);
+		}
+	}
+
+	/** Picks the value a sharded proxy routes each call by. */
+	public interface KeyExtractor {
+		public Object getKey(Method method, Object[] args);
+	}
+
+	/** Routes by the first parameter, or the method name if there is none. */
+	public static final KeyExtractor FIRST_PARAMETER = new KeyExtractor() {
+		public Object getKey(Method method, Object[] args) {
+			if (args == null || args.length == 0)
+				return method.getName();
+			return args[0];
+		}
+	};
+
+	private static Object invokeLocal(Server server, Method method,
+			Object[] args) throws IOException {
+		Invocation invocation = new Invocation(method, args);
+		if (method.getReturnType() == void.class
+				&& method.isAnnotationPresent(OneWay.class)) {
+			try {
+				callLocal(server, invocation);
+			} catch (RemoteException e) {
+			}
+			return null;
+		}
+		if (method.getReturnType() == CompletableFuture.class) {
+			try {
+				return CompletableFuture.completedFuture(callLocal(server,
+						invocation));
+			} catch (IOException e) {
+				CompletableFuture future = new CompletableFuture();
+				future.completeExceptionally(e);
+				return future;
+			}
+		}
+		return callLocal(server, invocation);
+	}
+
+	private static Object callLocal(Server server, Invocation invocation)
+			throws IOException {
+		if (copyLocalCalls)
+			invocation = (Invocation) copy(invocation, new Invocation());
+		Writable value;
+		try {
+			value = server.call(invocation);
+		} catch (Exception e) {
+			// fail as a call over the network would
+			throw new RemoteException(org.track.rpc.Server.getStackTrace(e));
+		}
+		if (copyLocalCalls)
+			value = copy(value, new ObjectWritable());
+		return ((ObjectWritable) value).get();
+	}
+
+	private static Writable copy(Writable from, Writable to)
+			throws IOException {
+		NameDictionary previous = NameDictionary.attach(null);
+		try {
+			DataOutputBuffer out = new DataOutputBuffer();
+			from.write(out);
+			DataInputBuffer in = new DataInputBuffer();
+			in.reset(out.getData(), out.getLength());
+			to.readFields(in);
+			return to;
+		} finally {
+			NameDictionary.attach(previous);
+		}
+	}
+
+	private static Server getLocalServer(InetSocketAddress address) {
+		if (!shortCircuit || LOCAL_SERVERS.isEmpty())
+			return null;
+		Server server = (Server) LOCAL_SERVERS.get(Integer.valueOf(address
+				.getPort()));
+		if (server == null || !Client.isLocal(address.getAddress()))
+			return null;
+		return server;
+	}
+
+	/**
+	 * With enabled, proxies whose address names a server started in this
+	 * process call its instance directly on the calling thread, skipping the
+	 * socket, the call queue and, unless copy is set, serialization. Without
+	 * copy, parameters and values are shared between caller and server.
+	 * Server-side features that act on the queue, such as load shedding and
+	 * fair scheduling, do not see these calls. Off by default.
+	 */
+	public static void setShortCircuit(boolean enabled, boolean copy) {
+		copyLocalCalls = copy;
+		shortCircuit = enabled;
+	}
+
+	private static final Function UNWRAP = new Function() {
+		public Object apply(Object value) {
+			return ((ObjectWritable) value).get();
+		}
+	};
+
+	private static class UnknownMethodException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public UnknownMethodException(String methodName) {
+			super("Unknown method " + methodName);
+		}
+
+		public Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	private static class Dispatch {
+		private Class[] parameterClasses;
+		private Class returnClass;
+		private MethodHandle handle;
+		private ObjectWritable voidValue;
+		private int priority;
+
+		public Dispatch(Object instance, Method method)
+				throws IllegalAccessException {
+			this.parameterClasses = method.getParameterTypes();
+			this.returnClass = method.getReturnType();
+			this.priority = findPriority(instance.getClass(), method);
+			if (returnClass == Void.TYPE)
+				this.voidValue = new ObjectWritable(Void.TYPE, null);
+			try {
+				method.setAccessible(true);
+			} catch (RuntimeException e) {
+			}
+			MethodHandle handle = MethodHandles.lookup().unreflect(method);
+			if (!Modifier.isStatic(method.getModifiers()))
+				handle = handle.bindTo(instance);
+			this.handle = handle.asSpreader(Object[].class,
+					parameterClasses.length).asType(
+					MethodType.methodType(Object.class, Object[].class));
+		}
+
+		// the annotation may sit on the method or on any interface declaring it
+		private static int findPriority(Class type, Method method) {
+			Priority priority = method.getAnnotation(Priority.class);
+			for (; priority == null && type != null; type = type
+					.getSuperclass()) {
+				Class[] interfaces = type.getInterfaces();
+				for (int i = 0; priority == null && i < interfaces.length; i++) {
+					try {
+						priority = interfaces[i].getMethod(
+								method.getName(), method.getParameterTypes())
+								.getAnnotation(Priority.class);
+					} catch (NoSuchMethodException e) {
+					}
+				}
+			}
+			return priority == null ? 0 : priority.value();
+		}
+
+		public boolean matches(Class[] classes) {
+			if (classes.length != parameterClasses.length)
+				return false;
+			for (int i = 0; i < classes.length; i++) {
+				if (classes[i] != parameterClasses[i])
+					return false;
+			}
+			return true;
+		}
+
+		public ObjectWritable invoke(Object[] parameters) throws Throwable {
+			Object value = handle.invokeExact(parameters);
+			if (voidValue != null)
+				return voidValue;
+			return new ObjectWritable(returnClass, value);
 		}
 	}
 
 	public static class Server extends org.track.rpc.Server {
 		private Object instance;
-		private Class implementation;
+		private Map dispatchTable = new HashMap();
+		private Dispatch[] dispatchById;
+		private NameDictionary dictionary = new NameDictionary();
+		private boolean hasPriorities;
+		private int port;
 
 		public Server(Object instance, int port) {
 			this(instance, port, 1);
 		}
 
 		public Server(Object instance, int port, int numHandlers) {
-			super(port, Invocation.class, numHandlers);
+			this(instance, port, numHandlers, 0);
+		}
+
+		public Server(Object instance, int port, int numHandlers,
+				int numReaders) {
+			super(port, Invocation.class, numHandlers, numReaders);
 			this.instance = instance;
-			this.implementation = instance.getClass();
+			this.port = port;
+			Method[] methods = instance.getClass().getMethods();
+			Map dispatchIds = new HashMap();
+			for (int i = 0; i < methods.length; i++) {
+				Dispatch dispatch;
+				try {
+					dispatch = new Dispatch(instance, methods[i]);
+				} catch (IllegalAccessException e) {
+					continue;
+				}
+				if (dispatch.priority != 0)
+					hasPriorities = true;
+				if (methods[i].getDeclaringClass() != Object.class) {
+					dispatchIds.put(Integer.valueOf(dictionary
+							.add(getSignature(methods[i]))), dispatch);
+				}
+				Dispatch[] overloads = (Dispatch[]) dispatchTable
+						.get(methods[i].getName());
+				if (overloads == null) {
+					overloads = new Dispatch[] { dispatch };
+				} else {
+					Dispatch[] grown = new Dispatch[overloads.length + 1];
+					System.arraycopy(overloads, 0, grown, 0, overloads.length);
+					grown[overloads.length] = dispatch;
+					overloads = grown;
+				}
+				dispatchTable.put(methods[i].getName(), overloads);
+			}
+
+			this.dispatchById = new Dispatch[dictionary.size()];
+			Iterator iter = dispatchIds.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry entry = (Map.Entry) iter.next();
+				dispatchById[((Integer) entry.getKey()).intValue()] = (Dispatch) entry
+						.getValue();
+			}
+			ObjectWritable.addBuiltinClasses(dictionary);
+			for (int i = 0; i < methods.length; i++) {
+				if (methods[i].getDeclaringClass() == Object.class)
+					continue;
+				Class[] parameterClasses = methods[i].getParameterTypes();
+				for (int j = 0; j < parameterClasses.length; j++) {
+					dictionary.addClass(parameterClasses[j]);
+				}
+				dictionary.addClass(methods[i].getReturnType());
+			}
 		}
 
-		public Writable call(Writable param) throws IOException {
-			try {
-				Invocation call = (Invocation) param;
+		protected NameDictionary getDictionary() {
+			return dictionary;
+		}
 
-				Method method = implementation.getMethod(call.getMethodName(),
-						call.getParameterClasses());
+		public synchronized void start() throws IOException {
+			super.start();
+			LOCAL_SERVERS.put(Integer.valueOf(port), this);
+		}
 
-				Object value = method.invoke(instance, call.getParameters());
-				return new ObjectWritable(method.getReturnType(), value);
+		public synchronized void stop() {
+			LOCAL_SERVERS.remove(Integer.valueOf(port), this);
+			super.stop();
+		}
 
-			} catch (InvocationTargetException e) {
-				Throwable target = e.getTargetException();
-				if (target instanceof IOException) {
-					throw (IOException) target;
-				} else {
-					IOException ioe = new IOException(target.toString());
-					ioe.setStackTrace(target.getStackTrace());
-					throw ioe;
-				}
+		protected boolean hasPriorities() {
+			return hasPriorities;
+		}
+
+		protected int getPriority(Writable param) {
+			Dispatch dispatch = findDispatch((Invocation) param);
+			return dispatch == null ? 0 : dispatch.priority;
+		}
+
+		public Writable call(Writable param) throws IOException {
+			Invocation call = (Invocation) param;
+			Dispatch dispatch = findDispatch(call);
+			if (dispatch == null)
+				throw new UnknownMethodException(call.getMethodName());
+
+			try {
+				return dispatch.invoke(call.getParameters());
+			} catch (IOException e) {
+				throw e;
 			} catch (Throwable e) {
 				IOException ioe = new IOException(e.toString());
 				ioe.setStackTrace(e.getStackTrace());
 				throw ioe;
 			}
 		}
+
+		private Dispatch findDispatch(Invocation call) {
+			Dispatch dispatch = null;
+			Dispatch[] overloads = null;
+			if (call.getMethodId() >= 0) {
+				if (call.getMethodId() < dispatchById.length)
+					dispatch = dispatchById[call.getMethodId()];
+			} else {
+				overloads = (Dispatch[]) dispatchTable.get(call
+						.getMethodName());
+			}
+			if (overloads != null) {
+				Class[] parameterClasses = call.getParameterClasses();
+				for (int i = 0; i < overloads.length; i++) {
+					if (overloads[i].matches(parameterClasses)) {
+						dispatch = overloads[i];
+						break;
+					}
+				}
+			}
+			return dispatch;
+		}
+	}
+
+	/**
+	 * Returns the client shared by all proxies, so that its timeout and
+	 * transport can be configured before the first call.
+	 */
+	public static synchronized Client getClient() {
+		if (CLIENT == null) {
+			CLIENT = new Client(ObjectWritable.class);
+		}
+		return CLIENT;
+	}
+
+	private static String getSignature(Method method) {
+		String signature = (String) SIGNATURES.get(method);
+		if (signature == null) {
+			StringBuffer buffer = new StringBuffer();
+			buffer.append(method.getName());
+			buffer.append("(");
+			Class[] parameterClasses = method.getParameterTypes();
+			for (int i = 0; i < parameterClasses.length; i++) {
+				if (i != 0)
+					buffer.append(",");
+				buffer.append(parameterClasses[i].getName());
+			}
+			buffer.append(")");
+			signature = buffer.toString();
+			SIGNATURES.put(method, signature);
+		}
+		return signature;
 	}
 
+	/**
+	 * Methods of the protocol declared to return CompletableFuture are sent
+	 * asynchronously. They are matched on the server by name and parameter
+	 * types, so the server implements a twin interface whose methods return
+	 * the plain result type. Void methods marked {@link OneWay} are sent
+	 * without waiting for a reply.
+	 */
 	public static Object getProxy(Class protocol, InetSocketAddress address) {
 		return Proxy.newProxyInstance(protocol.getClassLoader(),
 				new Class[] { protocol }, new Invoker(address));
 	}
 
+	/**
+	 * Returns a proxy that sends each call to the server owning the key
+	 * extracted from it on the ring. Servers marked down on the ring are
+	 * routed around, and one that refuses a connection is skipped for the
+	 * ring's retry interval while the call moves on to the next.
+	 */
+	public static Object getProxy(Class protocol, HashRing ring,
+			KeyExtractor keys) {
+		return Proxy.newProxyInstance(protocol.getClassLoader(),
+				new Class[] { protocol }, new ShardedInvoker(ring, keys));
+	}
+
+	/**
+	 * Returns a batch that collects calls made through its own proxy for the
+	 * same protocol and server as proxy, which must come from getProxy.
+	 */
+	public static Batch batch(Object proxy) {
+		InvocationHandler handler = Proxy.getInvocationHandler(proxy);
+		if (!(handler instanceof Invoker) || handler instanceof ShardedInvoker)
+			throw new IllegalArgumentException("Not an RPC proxy");
+		return new Batch(proxy.getClass().getInterfaces(),
+				((Invoker) handler).address);
+	}
+
+	/**
+	 * Calls made through {@link #getProxy()} are recorded instead of sent,
+	 * returning null or zero, and {@link #execute()} sends everything
+	 * recorded so far in a single frame.
+	 */
+	public static class Batch {
+		private InetSocketAddress address;
+		private Object proxy;
+		private List invocations = new ArrayList();
+		private boolean parallel;
+
+		private Batch(Class[] protocols, InetSocketAddress address) {
+			this.address = address;
+			this.proxy = Proxy.newProxyInstance(protocols[0].getClassLoader(),
+					protocols, new Recorder());
+		}
+
+		public Object getProxy() {
+			return proxy;
+		}
+
+		/** Lets the server run the calls concurrently across its handlers. */
+		public void setParallel(boolean parallel) {
+			this.parallel = parallel;
+		}
+
+		public synchronized int size() {
+			return invocations.size();
+		}
+
+		/** Sends the recorded calls and returns their results in order. */
+		public Object[] execute() throws IOException {
+			Writable[] params;
+			synchronized (this) {
+				params = (Writable[]) invocations
+						.toArray(new Writable[invocations.size()]);
+				invocations.clear();
+			}
+			Writable[] values = getClient().call(params, address, parallel);
+			Object[] results = new Object[values.length];
+			for (int i = 0; i < values.length; i++)
+				results[i] = ((ObjectWritable) values[i]).get();
+			return results;
+		}
+
+		private class Recorder implements InvocationHandler {
+			public Object invoke(Object proxy, Method method, Object[] args)
+					throws Throwable {
+				if (method.getDeclaringClass() == Object.class)
+					return method.invoke(this, args);
+				synchronized (Batch.this) {
+					invocations.add(new Invocation(method, args));
+				}
+				Class type = method.getReturnType();
+				if (type.isPrimitive() && type != void.class)
+					return Array.get(Array.newInstance(type, 1), 0);
+				return null;
+			}
+		}
+	}
+
 	public static Object[] call(Method method, Object[][] params,
 			InetSocketAddress[] address) throws IOException {
+		return call(method, params, address, params.length);
+	}
+
+	/**
+	 * Like {@link #call(Method, Object[][], InetSocketAddress[])}, but
+	 * returns once required of the servers have answered; the values of the
+	 * others are null.
+	 */
+	public static Object[] call(Method method, Object[][] params,
+			InetSocketAddress[] address, int required) throws IOException {
 
 		Invocation[] invocations = new Invocation[params.length];
 		for (int i = 0; i < params.length; i++)
 			invocations[i] = new Invocation(method, params[i]);
-		if (CLIENT == null) {
-			CLIENT = new Client(ObjectWritable.class);
-		}
-		Writable[] wrappedValues = CLIENT.call(invocations, address);
+		Writable[] wrappedValues = getClient().call(invocations, address,
+				required);
 
 		if (method.getReturnType() == Void.TYPE) {
 			return null;
@@ -171,8 +662,54 @@ public class RPC {
 		return values;
 	}
 
+	/**
+	 * Calls method on the first of the replicas, hedging to the next one
+	 * whenever the previous has taken longer than the given fraction of its
+	 * recent calls, such as 0.95, and returns the first value. The method
+	 * must be safe to run on several replicas.
+	 */
+	public static Object call(Method method, Object[] params,
+			InetSocketAddress[] replicas, double fraction)
+			throws IOException {
+		Writable value = getClient().call(new Invocation(method, params),
+				replicas, fraction);
+		return ((ObjectWritable) value).get();
+	}
+
+	/** Receives the values of a streamed parallel call as they arrive. */
+	public interface Callback {
+
+		/** Called with the value from address[index], or the failure. */
+		public void callComplete(int index, Object value, IOException failure);
+	}
+
+	/**
+	 * Starts a parallel call and returns at once, passing each server's
+	 * value to the callback as it arrives, from a connection thread.
+	 */
+	public static void call(Method method, Object[][] params,
+			InetSocketAddress[] address, final Callback callback) {
+		Invocation[] invocations = new Invocation[params.length];
+		for (int i = 0; i < params.length; i++)
+			invocations[i] = new Invocation(method, params[i]);
+		getClient().call(invocations, address, new Client.Callback() {
+			public void callComplete(int index, Writable value,
+					IOException failure) {
+				callback.callComplete(index, value == null ? null
+						: ((ObjectWritable) value).get(), failure);
+			}
+		});
+	}
+
+	/**
+	 * Returns a server whose handler pool starts at one thread and grows
+	 * with load up to four per processor.
+	 */
 	public static Server getServer(final Object instance, final int port) {
-		return getServer(instance, port, 1, false);
+		Server server = getServer(instance, port, 1, false);
+		server.setHandlerBounds(1,
+				Runtime.getRuntime().availableProcessors() * 4);
+		return server;
 	}
 
 	public static Server getServer(final Object instance, final int port,
@@ -180,4 +717,9 @@ public class RPC {
 		return new Server(instance, port, numHandlers);
 	}
 
+	public static Server getServer(final Object instance, final int port,
+			final int numHandlers, final int numReaders) {
+		return new Server(instance, port, numHandlers, numReaders);
+	}
+
 }
@@ -0,0 +1,89 @@
+package org.track.rpc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer ring buffer. Every slot
+ * carries a sequence number telling producers and consumers whose turn it is,
+ * so offer and poll each cost one CAS on their own cursor in the common case.
+ * The capacity is rounded up to a power of two, and to at least two so that a
+ * filled slot can never look free to the next producer.
+ */
+public class RingCallQueue implements CallQueue {
+
+	private final int mask;
+	private final AtomicReferenceArray slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	public RingCallQueue(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity: " + capacity);
+		int size = Math.max(2, Integer.highestOneBit(capacity));
+		if (size < capacity)
+			size <<= 1;
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	public boolean offer(Object call) {
+		long position = tail.get();
+		int index;
+		while (true) {
+			index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+				position = tail.get();
+			} else if (difference < 0) {
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+		slots.set(index, call);
+		sequences.lazySet(index, position + 1);
+		return true;
+	}
+
+	public Object poll() {
+		long position = head.get();
+		int index;
+		while (true) {
+			index = (int) position & mask;
+			long difference = sequences.get(index) - (position + 1);
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1))
+					break;
+				position = head.get();
+			} else if (difference < 0) {
+				return null;
+			} else {
+				position = head.get();
+			}
+		}
+		Object call = slots.get(index);
+		slots.set(index, null);
+		sequences.lazySet(index, position + mask + 1);
+		return call;
+	}
+
+	public int size() {
+		long size = tail.get() - head.get();
+		if (size < 0)
+			return 0;
+		return (int) Math.min(size, mask + 1);
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+}
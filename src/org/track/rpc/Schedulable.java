@@ -0,0 +1,18 @@
+package org.track.rpc;
+
+import java.net.InetAddress;
+
+/**
+ * What the server tells a {@link CallQueue} about each call it offers, for
+ * queues that order calls by where they came from or how urgent they are.
+ */
+public interface Schedulable {
+
+	/** Returns an object standing for the connection the call arrived on. */
+	public Object getConnection();
+
+	public InetAddress getRemoteAddress();
+
+	/** Returns the call's priority; higher values are more urgent. */
+	public int getPriority();
+}
@@ -2,44 +2,162 @@ package org.track.rpc;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import org.track.io.BufferPool;
+import org.track.io.DataInputBuffer;
+import org.track.io.DataOutputBuffer;
+import org.track.io.NameDictionary;
 import org.track.io.UTF8;
 import org.track.io.Writable;
+import org.track.io.WritableUtils;
 
 public abstract class Server {
 
 	private static final ThreadLocal SERVER = new ThreadLocal();
 
+	static final String RING_PREFIX = "track-rpc-";
+
+	// queue wait that calls for another handler, and the least time between
+	// two additions
+	private static final long GROW_WAIT_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(10);
+
+	// how much a connection with heartbeats reads past a full queue, so its
+	// pings are still answered, and how often it then looks for room
+	private static final int MAX_HELD_BYTES = 1024 * 1024;
+	private static final int HELD_POLL_MILLIS = 5;
+
 	private int port;
 	private int handlerCount;
+	private int minHandlers;
+	private int maxHandlers;
+	private AtomicInteger liveHandlers = new AtomicInteger();
+	private AtomicInteger busyHandlers = new AtomicInteger();
+	private AtomicInteger handlerNumbers = new AtomicInteger();
+	private AtomicLong lastGrowth = new AtomicLong();
+	private int readerCount;
+	private boolean virtualThreads;
 	private int maxQueuedCalls;
 	private Class paramClass;
 	private int timeout;
 	private boolean running = true;
-	private LinkedList callQueue = new LinkedList();
-	private Object callDequeued = new Object();
+	private CallQueue callQueue;
+	private Responder responder;
+	private ConcurrentLinkedQueue idleHandlers = new ConcurrentLinkedQueue();
+	private ConcurrentLinkedQueue pausedConnections = new ConcurrentLinkedQueue();
+	private int maxBatchBytes;
+	private long lingerMicros;
+	private AtomicLong flushes = new AtomicLong();
+	private AtomicLong flushedMessages = new AtomicLong();
+	private AtomicLong expiredCalls = new AtomicLong();
+	private AtomicLong rejectedCalls = new AtomicLong();
+	private AdmissionController admission;
+	private BufferPool bufferPool = new BufferPool();
+	private int compressionThreshold = 1024;
+	private String unixSocket;
+	private String ringDirectory;
+	private Reader[] readers;
+	private int currentReader;
 
-	private static class Call {
+	private static class Call implements Schedulable {
 		private int id;
 		private Writable param;
+		private int flags;
+		private int priority;
+		private long deadline;
+		private long queued;
+		private DataOutputBuffer frame;
 		private Connection connection;
+		private Batch batch;
+		private int index;
 
 		public Call(int id, Writable param, Connection connection) {
 			this.id = id;
 			this.param = param;
 			this.connection = connection;
 		}
+
+		// the param of a framed call is decoded by the handler that runs it
+		public Call(int id, int flags, DataOutputBuffer frame,
+				Connection connection) {
+			this.id = id;
+			this.flags = flags;
+			this.frame = frame;
+			this.connection = connection;
+		}
+
+		public Object getConnection() {
+			return connection;
+		}
+
+		public InetAddress getRemoteAddress() {
+			return connection.getRemoteAddress();
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+	}
+
+	private static class Batch {
+		private Call call;
+		private Writable[] values;
+		private String[] errors;
+		private AtomicInteger remaining;
+
+		public Batch(Call call, int size) {
+			this.call = call;
+			this.values = new Writable[size];
+			this.errors = new String[size];
+			this.remaining = new AtomicInteger(size);
+		}
+
+		/** Returns true for the part that completes the batch. */
+		public boolean complete(int index, Writable value, String error) {
+			values[index] = value;
+			errors[index] = error;
+			return remaining.decrementAndGet() == 0;
+		}
 	}
 
 	private class Listener extends Thread {
@@ -55,7 +173,7 @@ public abstract class Server {
 		public void run() {
 			while (running) {
 				try {
-					new Connection(socket.accept()).start();
+					new SocketConnection(socket.accept()).start();
 				} catch (SocketTimeoutException e) {
 				} catch (Exception e) {
 				}
@@ -67,61 +185,764 @@ public abstract class Server {
 		}
 	}
 
-	private class Connection extends Thread {
+	private class Acceptor extends Thread {
+		private ServerSocketChannel acceptChannel;
+		private Selector selector;
+		private String path;
+
+		/** Accepts on the port, or on the Unix socket at path if not null. */
+		public Acceptor(String path) throws IOException {
+			if (path == null) {
+				this.acceptChannel = ServerSocketChannel.open();
+				acceptChannel.socket().bind(new InetSocketAddress(port));
+				this.setName("Server acceptor on port " + port);
+			} else {
+				// a socket file left behind by an earlier run blocks the bind
+				Files.deleteIfExists(Path.of(path));
+				this.acceptChannel = ServerSocketChannel
+						.open(StandardProtocolFamily.UNIX);
+				acceptChannel.bind(UnixDomainSocketAddress.of(path));
+				this.setName("Server acceptor on " + path);
+			}
+			this.path = path;
+			acceptChannel.configureBlocking(false);
+			this.selector = Selector.open();
+			acceptChannel.register(selector, SelectionKey.OP_ACCEPT);
+			this.setDaemon(true);
+		}
+
+		public void run() {
+			while (running) {
+				try {
+					selector.select(timeout);
+					Iterator iter = selector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = (SelectionKey) iter.next();
+						iter.remove();
+						if (key.isValid() && key.isAcceptable()) {
+							doAccept();
+						}
+					}
+				} catch (Exception e) {
+				}
+			}
+			try {
+				selector.close();
+				acceptChannel.close();
+				if (path != null)
+					Files.deleteIfExists(Path.of(path));
+			} catch (IOException e) {
+			}
+		}
+
+		private void doAccept() throws IOException {
+			SocketChannel channel;
+			while ((channel = acceptChannel.accept()) != null) {
+				channel.configureBlocking(false);
+				if (path == null)
+					channel.socket().setTcpNoDelay(true);
+				nextReader().add(new ChannelConnection(channel));
+			}
+		}
+	}
+
+	private synchronized Reader nextReader() {
+		Reader reader = readers[currentReader];
+		currentReader = (currentReader + 1) % readers.length;
+		return reader;
+	}
+
+	private class Reader extends Thread {
+		private Selector selector;
+		private LinkedList pending = new LinkedList();
+		private ConcurrentLinkedQueue resumed = new ConcurrentLinkedQueue();
+
+		public Reader(int instanceNumber) throws IOException {
+			this.selector = Selector.open();
+			this.setDaemon(true);
+			this.setName("Server reader " + instanceNumber + " on port "
+					+ port);
+		}
+
+		public void add(ChannelConnection connection) {
+			connection.reader = this;
+			synchronized (pending) {
+				pending.addLast(connection);
+			}
+			selector.wakeup();
+		}
+
+		public void resume(ChannelConnection connection) {
+			resumed.add(connection);
+			selector.wakeup();
+		}
+
+		public void run() {
+			SERVER.set(Server.this);
+			while (running) {
+				try {
+					selector.select(timeout);
+					registerPending();
+					resumePaused();
+					Iterator iter = selector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = (SelectionKey) iter.next();
+						iter.remove();
+						ChannelConnection connection = (ChannelConnection) key
+								.attachment();
+						if (!key.isValid() || !key.isReadable())
+							continue;
+						try {
+							connection.readAndProcess();
+						} catch (Exception e) {
+							connection.close();
+						}
+					}
+				} catch (Exception e) {
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private void registerPending() {
+			while (true) {
+				ChannelConnection connection;
+				synchronized (pending) {
+					if (pending.isEmpty())
+						return;
+					connection = (ChannelConnection) pending.removeFirst();
+				}
+				try {
+					connection.key = connection.channel.register(selector,
+							SelectionKey.OP_READ, connection);
+				} catch (IOException e) {
+					connection.close();
+				}
+			}
+		}
+
+		private void resumePaused() {
+			ChannelConnection connection;
+			while ((connection = (ChannelConnection) resumed.poll()) != null) {
+				try {
+					connection.processInput();
+				} catch (Exception e) {
+					connection.close();
+				}
+			}
+		}
+	}
+
+	private abstract class Connection {
+		protected NameDictionary dictionary;
+		protected boolean framed;
+		protected FrameCodec codec;
+		protected DataInputBuffer request = new DataInputBuffer();
+		protected RingConnection ring;
+		protected boolean heartbeats;
+		protected AtomicBoolean paused = new AtomicBoolean();
+		private LinkedList held = new LinkedList();
+		private int heldBytes;
+
+		protected void readHeader(DataInput in) throws IOException {
+			ConnectionHeader header = new ConnectionHeader();
+			header.readFields(in);
+			int flags = 0;
+			NameDictionary serverDictionary = getDictionary();
+			if (header.has(ConnectionHeader.DICTIONARY)
+					&& serverDictionary != null)
+				flags |= ConnectionHeader.DICTIONARY;
+			if (header.has(ConnectionHeader.FRAMED)) {
+				flags |= ConnectionHeader.FRAMED;
+				if (header.has(ConnectionHeader.COMPRESSED)
+						&& compressionThreshold > 0)
+					flags |= ConnectionHeader.COMPRESSED;
+				if (header.has(ConnectionHeader.HEARTBEAT))
+					flags |= ConnectionHeader.HEARTBEAT;
+				if (header.has(ConnectionHeader.RING)
+						&& acceptRing(header.getRingPath()))
+					flags |= ConnectionHeader.RING;
+			}
+
+			DataOutputBuffer reply = new DataOutputBuffer();
+			ConnectionHeader replyHeader = new ConnectionHeader(flags);
+			replyHeader.setRingPath(header.getRingPath());
+			replyHeader.write(reply);
+			if ((flags & ConnectionHeader.DICTIONARY) != 0) {
+				serverDictionary.write(reply);
+				dictionary = serverDictionary;
+			}
+			sendResponse(reply.getData(), reply.getLength());
+			framed = (flags & ConnectionHeader.FRAMED) != 0;
+			if ((flags & ConnectionHeader.COMPRESSED) != 0)
+				codec = new FrameCodec(compressionThreshold);
+			heartbeats = (flags & ConnectionHeader.HEARTBEAT) != 0;
+			if (ring != null) {
+				ring.dictionary = dictionary;
+				ring.codec = codec;
+				ring.heartbeats = heartbeats;
+				ring.start();
+			}
+		}
+
+		/**
+		 * Queues a call read from the connection, or holds it behind those
+		 * already waiting for room. Returns whether to keep reading, which a
+		 * connection with heartbeats does while it holds little, so that a
+		 * full queue does not leave its pings unanswered.
+		 */
+		protected boolean offer(Call call) {
+			if (held.isEmpty() && queueCall(call))
+				return true;
+			held.addLast(call);
+			heldBytes += call.frame == null ? 0 : call.frame.getLength();
+			pause(this);
+			return canReadAhead();
+		}
+
+		/** Queues held calls while there is room; true once none are left. */
+		protected boolean releaseHeld() {
+			while (!held.isEmpty()) {
+				Call call = (Call) held.getFirst();
+				if (!queueCall(call)) {
+					pause(this);
+					return false;
+				}
+				held.removeFirst();
+				heldBytes -= call.frame == null ? 0 : call.frame.getLength();
+			}
+			return true;
+		}
+
+		protected boolean isHolding() {
+			return !held.isEmpty();
+		}
+
+		protected boolean canReadAhead() {
+			return heartbeats && heldBytes < MAX_HELD_BYTES;
+		}
+
+		/**
+		 * Maps the client's ring file if rings are enabled, the client is on
+		 * this host and the file is a ring file in the ring directory: a
+		 * regular file, not a link, owned by the user running the server
+		 * and with no other names. This keeps a client from aiming the
+		 * server at another file by a link, but any process that can write
+		 * to the directory can still swap files in it, so the directory
+		 * should be private to that user.
+		 */
+		private boolean acceptRing(String name) {
+			if (ringDirectory == null || !Client.isLocal(getRemoteAddress()))
+				return false;
+			try {
+				Path path = Paths.get(name);
+				Path directory = Paths.get(ringDirectory).toRealPath();
+				if (path.getParent() == null
+						|| !path.getFileName().toString().startsWith(RING_PREFIX)
+						|| !directory.equals(path.getParent().toRealPath()))
+					return false;
+				path = directory.resolve(path.getFileName());
+				BasicFileAttributes attributes = Files.readAttributes(path,
+						BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				UserPrincipal owner = path.getFileSystem()
+						.getUserPrincipalLookupService().lookupPrincipalByName(
+								System.getProperty("user.name"));
+				if (!attributes.isRegularFile()
+						|| !owner.equals(Files.getOwner(path,
+								LinkOption.NOFOLLOW_LINKS))
+						|| ((Number) Files.getAttribute(path, "unix:nlink",
+								LinkOption.NOFOLLOW_LINKS)).intValue() != 1)
+					return false;
+				ring = new RingConnection(path, attributes.size(), this);
+				return true;
+			} catch (IOException e) {
+				return false;
+			} catch (UnsupportedOperationException e) {
+				// no link counts, so no telling whether it is ours
+				return false;
+			} catch (IllegalArgumentException e) {
+				// a bad path, or not sized like a pair of rings
+				return false;
+			}
+		}
+
+		protected Call readFrame(DataInput in) throws IOException {
+			int length = Frame.checkLength(in.readInt());
+			int id = in.readInt();
+			int flags = in.readUnsignedByte();
+			long deadline = 0;
+			if ((flags & Frame.DEADLINE) != 0) {
+				if (length < 4)
+					throw new IOException("Bad frame length " + length);
+				deadline = System.currentTimeMillis() + in.readInt();
+				length -= 4;
+			}
+			DataOutputBuffer frame = bufferPool.take(length);
+			frame.write(in, length);
+			Call call = new Call(id, flags, frame, this);
+			call.deadline = deadline;
+			return call;
+		}
+
+		public abstract void sendResponse(byte[] data, int length)
+				throws IOException;
+
+		public abstract InetAddress getRemoteAddress();
+
+		public abstract void resume();
+
+		public abstract void close();
+	}
+
+	private class SocketConnection extends Connection implements Runnable {
 		private Socket socket;
 		private DataInputStream in;
 		private DataOutputStream out;
+		private WriteBatcher batcher;
+		private Thread thread;
 
-		public Connection(Socket socket) throws IOException {
+		public SocketConnection(Socket socket) throws IOException {
 			this.socket = socket;
 			socket.setSoTimeout(timeout);
 			this.in = new DataInputStream(new BufferedInputStream(
 					socket.getInputStream()));
-			this.out = new DataOutputStream(new BufferedOutputStream(
-					socket.getOutputStream()));
-			this.setDaemon(true);
-			this.setName("Server connection on port " + port + " from "
-					+ socket.getInetAddress().getHostAddress());
+			if (maxBatchBytes > 0) {
+				this.batcher = new WriteBatcher(socket.getOutputStream(),
+						maxBatchBytes, lingerMicros, flushes, flushedMessages);
+			} else {
+				this.out = new DataOutputStream(new BufferedOutputStream(
+						socket.getOutputStream()));
+			}
+			this.thread = VirtualThreads.newThread(this,
+					"Server connection on port " + port + " from "
+							+ socket.getInetAddress().getHostAddress(),
+					virtualThreads);
+		}
+
+		public void start() {
+			thread.start();
 		}
 
 		public void run() {
 			SERVER.set(Server.this);
 			try {
 				while (running) {
-					int id;
+					in.mark(4);
 					try {
-						id = in.readInt();
+						int magic = in.readInt();
+						in.reset();
+						if (magic == ConnectionHeader.MAGIC)
+							readHeader(in);
+						break;
 					} catch (SocketTimeoutException e) {
+						in.reset();
+					}
+				}
+				NameDictionary.attach(dictionary);
+				while (running) {
+					if (!releaseHeld() && !canReadAhead()) {
+						LockSupport.parkNanos(this,
+								TimeUnit.MILLISECONDS.toNanos(timeout));
 						continue;
 					}
-					Writable param = makeParam();
-					param.readFields(in);
-					Call call = new Call(id, param, this);
-
-					synchronized (callQueue) {
-						callQueue.addLast(call);
-						callQueue.notify();
+					// only the wait for the next message may time out; one
+					// that stalls part way leaves the stream out of step.
+					// While calls are held, wake often to look for room.
+					boolean holding = isHolding();
+					if (holding)
+						socket.setSoTimeout(HELD_POLL_MILLIS);
+					in.mark(1);
+					try {
+						if (in.read() < 0)
+							throw new EOFException();
+					} catch (SocketTimeoutException e) {
+						continue;
+					} finally {
+						if (holding)
+							socket.setSoTimeout(timeout);
 					}
-					while (running && callQueue.size() >= maxQueuedCalls) {
-						synchronized (callDequeued) {
-							callDequeued.wait(timeout);
+					in.reset();
+					Call call = framed ? readFrame(in) : readCall();
+					if (answerHeartbeat(call))
+						continue;
+					prioritize(call);
+					if (!admit(call))
+						continue;
+					offer(call);
+				}
+			} catch (EOFException e) {
+			} catch (SocketException e) {
+			} catch (Exception e) {
+			} finally {
+				close();
+			}
+		}
+
+		private Call readCall() throws IOException {
+			int id = in.readInt();
+			Writable param = makeParam();
+			param.readFields(in);
+			return new Call(id, param, this);
+		}
+
+		public void sendResponse(byte[] data, int length) throws IOException {
+			if (batcher != null) {
+				batcher.write(data, length);
+				return;
+			}
+			synchronized (out) {
+				out.write(data, 0, length);
+				out.flush();
+			}
+			flushes.incrementAndGet();
+			flushedMessages.incrementAndGet();
+		}
+
+		public void resume() {
+			LockSupport.unpark(thread);
+		}
+
+		public InetAddress getRemoteAddress() {
+			return socket.getInetAddress();
+		}
+
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+			if (ring != null)
+				ring.close();
+		}
+	}
 
+	private class ChannelConnection extends Connection {
+		private SocketChannel channel;
+		private SelectionKey key;
+		private Reader reader;
+		private ByteBuffer input = ByteBuffer.allocate(8192);
+		private DataInputBuffer decoder = new DataInputBuffer();
+		private boolean headerRead;
+		private LinkedList responses = new LinkedList();
+		private SelectionKey writeKey;
+
+		private InetAddress remoteAddress;
+
+		public ChannelConnection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			SocketAddress remote = channel.getRemoteAddress();
+			if (remote instanceof InetSocketAddress)
+				this.remoteAddress = ((InetSocketAddress) remote).getAddress();
+			else
+				this.remoteAddress = InetAddress.getLoopbackAddress();
+		}
+
+		public void readAndProcess() throws IOException {
+			if (!input.hasRemaining()) {
+				ByteBuffer larger = ByteBuffer.allocate(input.capacity() << 1);
+				input.flip();
+				larger.put(input);
+				input = larger;
+			}
+			if (channel.read(input) < 0)
+				throw new EOFException();
+			processInput();
+		}
+
+		public void processInput() throws IOException {
+			if (!releaseHeld() && !canReadAhead()) {
+				key.interestOps(0);
+				return;
+			}
+
+			// the wire format carries no length, so a call is complete once it
+			// decodes without running off the end of what has been read
+			int consumed = 0;
+			NameDictionary previous = NameDictionary.attach(dictionary);
+			try {
+				while (consumed < input.position()) {
+					decoder.reset(input.array(), consumed, input.position()
+							- consumed);
+					Call call;
+					try {
+						if (!headerRead) {
+							if (decoder.readInt() == ConnectionHeader.MAGIC) {
+								decoder.reset(input.array(), consumed,
+										input.position() - consumed);
+								readHeader(decoder);
+								NameDictionary.attach(dictionary);
+								headerRead = true;
+								consumed = decoder.getPosition();
+								continue;
+							}
+							headerRead = true;
+							decoder.reset(input.array(), consumed,
+									input.position() - consumed);
+						}
+						if (framed) {
+							// wait for the whole frame rather than retrying a
+							// partial one
+							int available = input.position() - consumed;
+							if (available < Frame.HEADER_LENGTH)
+								break;
+							// refuse a bad length before buffering for it
+							int length = Frame.checkLength(Frame.getInt(
+									input.array(), consumed));
+							if (available < Frame.HEADER_LENGTH + length)
+								break;
+							call = readFrame(decoder);
+						} else {
+							int id = decoder.readInt();
+							Writable param = makeParam();
+							param.readFields(decoder);
+							call = new Call(id, param, this);
 						}
+					} catch (EOFException e) {
+						break;
 					}
+					consumed = decoder.getPosition();
+					if (answerHeartbeat(call))
+						continue;
+					prioritize(call);
+					if (!admit(call))
+						continue;
+					if (!offer(call))
+						break;
+				}
+			} finally {
+				NameDictionary.attach(previous);
+			}
+			if (consumed > 0) {
+				input.flip();
+				input.position(consumed);
+				input.compact();
+			}
+			if (isHolding() && !canReadAhead()) {
+				key.interestOps(0);
+			} else if (key.interestOps() == 0) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		public void resume() {
+			reader.resume(this);
+		}
+
+		public InetAddress getRemoteAddress() {
+			return remoteAddress;
+		}
+
+		public void sendResponse(byte[] data, int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			buffer.put(data, 0, length);
+			buffer.flip();
+			synchronized (responses) {
+				responses.addLast(buffer);
+				// anything already queued is being written by the responder
+				if (responses.size() == 1 && !writeResponses())
+					responder.register(this);
+			}
+		}
+
+		private boolean writeResponses() throws IOException {
+			synchronized (responses) {
+				while (!responses.isEmpty()) {
+					ByteBuffer[] buffers = (ByteBuffer[]) responses
+							.toArray(new ByteBuffer[responses.size()]);
+					channel.write(buffers);
+					flushes.incrementAndGet();
+					while (!responses.isEmpty()
+							&& !((ByteBuffer) responses.getFirst())
+									.hasRemaining()) {
+						responses.removeFirst();
+						flushedMessages.incrementAndGet();
+					}
+					if (!responses.isEmpty())
+						return false;
+				}
+				return true;
+			}
+		}
+
+		public void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			synchronized (responses) {
+				responses.clear();
+			}
+			if (ring != null)
+				ring.close();
+		}
+	}
+
+	/**
+	 * Takes calls from a ring shared with a client process and answers on
+	 * the ring beside it. The connection that set it up carries nothing
+	 * more, and closing either closes both.
+	 */
+	private class RingConnection extends Connection implements Runnable {
+		private Connection control;
+		private MappedRing requests;
+		private MappedRing responses;
+		private DataInputBuffer input = new DataInputBuffer();
+		private Thread thread;
+		private volatile boolean closed;
+
+		public RingConnection(Path path, long size, Connection control)
+				throws IOException {
+			int capacity = MappedRing.getCapacity(size);
+			MappedByteBuffer map;
+			FileChannel channel = FileChannel.open(path,
+					StandardOpenOption.READ, StandardOpenOption.WRITE,
+					LinkOption.NOFOLLOW_LINKS);
+			try {
+				// a file swapped in since it was checked is likely sized
+				// differently
+				if (channel.size() != size)
+					throw new IOException("Ring file " + path + " changed");
+				map = MappedRing.map(channel, capacity);
+			} finally {
+				channel.close();
+			}
+			this.requests = new MappedRing(map, capacity, false);
+			this.responses = new MappedRing(map, capacity, true);
+			this.control = control;
+			this.framed = true;
+			this.thread = VirtualThreads.newThread(this, "Server ring on port "
+					+ port + " from " + path, virtualThreads);
+		}
+
+		public void start() {
+			thread.start();
+		}
+
+		public void run() {
+			SERVER.set(Server.this);
+			NameDictionary.attach(dictionary);
+			try {
+				while (running && !closed) {
+					if (!releaseHeld() && !canReadAhead()) {
+						LockSupport.parkNanos(this,
+								TimeUnit.MILLISECONDS.toNanos(timeout));
+						continue;
+					}
+					int length = requests.read(TimeUnit.MILLISECONDS
+							.toNanos(isHolding() ? HELD_POLL_MILLIS : timeout));
+					if (length < 0)
+						continue;
+					input.reset(requests.getRecord(), length);
+					Call call = readFrame(input);
+					if (answerHeartbeat(call))
+						continue;
+					prioritize(call);
+					if (!admit(call))
+						continue;
+					offer(call);
 				}
-			} catch (EOFException e) {
-			} catch (SocketException e) {
 			} catch (Exception e) {
 			} finally {
+				close();
+			}
+		}
+
+		public void sendResponse(byte[] data, int length) throws IOException {
+			responses.write(data, length);
+			flushes.incrementAndGet();
+			flushedMessages.incrementAndGet();
+		}
+
+		public void resume() {
+			LockSupport.unpark(thread);
+		}
+
+		public InetAddress getRemoteAddress() {
+			return control.getRemoteAddress();
+		}
+
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			requests.close();
+			responses.close();
+			control.close();
+		}
+	}
+
+	private class Responder extends Thread {
+		private Selector selector;
+		private ConcurrentLinkedQueue pending = new ConcurrentLinkedQueue();
+
+		public Responder() throws IOException {
+			this.selector = Selector.open();
+			this.setDaemon(true);
+			this.setName("Server responder on port " + port);
+		}
+
+		public void register(ChannelConnection connection) {
+			pending.add(connection);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (running) {
+				try {
+					selector.select(timeout);
+					registerPending();
+					Iterator iter = selector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = (SelectionKey) iter.next();
+						iter.remove();
+						if (key.isValid() && key.isWritable())
+							doWrite(key);
+					}
+				} catch (Exception e) {
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private void registerPending() {
+			ChannelConnection connection;
+			while ((connection = (ChannelConnection) pending.poll()) != null) {
+				try {
+					if (connection.writeKey == null) {
+						connection.writeKey = connection.channel.register(
+								selector, SelectionKey.OP_WRITE, connection);
+					} else {
+						connection.writeKey.interestOps(SelectionKey.OP_WRITE);
+					}
+				} catch (Exception e) {
+					connection.close();
+				}
+			}
+		}
+
+		private void doWrite(SelectionKey key) {
+			ChannelConnection connection = (ChannelConnection) key.attachment();
+			synchronized (connection.responses) {
 				try {
-					socket.close();
+					if (connection.writeResponses())
+						key.interestOps(0);
 				} catch (IOException e) {
+					connection.close();
 				}
 			}
 		}
 	}
 
 	private class Handler extends Thread {
+		private DataInputBuffer request = new DataInputBuffer();
+		private DataOutputBuffer response = new DataOutputBuffer();
+
 		public Handler(int instanceNumber) {
 			this.setDaemon(true);
 			this.setName("Server handler " + instanceNumber + " on " + port);
@@ -129,74 +950,270 @@ public abstract class Server {
 
 		public void run() {
 			SERVER.set(Server.this);
+			long idleSince = 0;
 			while (running) {
 				try {
-					Call call = null;
-					synchronized (callQueue) {
-						while (running && callQueue.size() == 0) {
-							callQueue.wait(timeout);
+					Call call = takeCall();
+					if (call != null) {
+						idleSince = 0;
+						busyHandlers.incrementAndGet();
+						try {
+							processCall(call, request, response);
+						} finally {
+							busyHandlers.decrementAndGet();
 						}
-						if (!running)
-							break;
-						call = (Call) callQueue.removeFirst();
-					}
-					synchronized (callDequeued) {
-						callDequeued.notify();
-					}
-					String error = null;
-					Writable value = null;
-					try {
-						value = call(call.param);
-					} catch (IOException e) {
-						error = getStackTrace(e);
-					} catch (Exception e) {
-						error = getStackTrace(e);
+					} else if (idleSince == 0) {
+						idleSince = System.currentTimeMillis();
+					} else if (System.currentTimeMillis() - idleSince >= timeout
+							&& retireHandler()) {
+						return;
 					}
+				} catch (Exception e) {
+				}
+			}
+		}
+	}
+
+	private class Dispatcher extends Thread {
+		private Semaphore permits = new Semaphore(maxQueuedCalls);
 
-					DataOutputStream out = call.connection.out;
-					synchronized (out) {
-						out.writeInt(call.id);
-						out.writeBoolean(error != null);
-						if (error != null)
-							value = new UTF8(error);
-						value.write(out);
-						out.flush();
+		public Dispatcher() {
+			this.setDaemon(true);
+			this.setName("Server dispatcher on " + port);
+		}
+
+		public void run() {
+			SERVER.set(Server.this);
+			while (running) {
+				try {
+					if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+						continue;
+					Call call = takeCall();
+					if (call == null) {
+						permits.release();
+						continue;
 					}
+					VirtualThreads.newThread(new CallRunner(call),
+							"Server call " + call.id + " on " + port).start();
 				} catch (Exception e) {
 				}
 			}
 		}
 
-		private String getStackTrace(Throwable throwable) {
-			StringWriter stringWriter = new StringWriter();
-			PrintWriter printWriter = new PrintWriter(stringWriter);
-			throwable.printStackTrace(printWriter);
-			printWriter.flush();
-			return stringWriter.toString();
+		private class CallRunner implements Runnable {
+			private Call call;
+
+			public CallRunner(Call call) {
+				this.call = call;
+			}
+
+			public void run() {
+				SERVER.set(Server.this);
+				try {
+					processCall(call, new DataInputBuffer(),
+							new DataOutputBuffer());
+				} catch (Exception e) {
+				} finally {
+					permits.release();
+				}
+			}
 		}
 	}
 
 	public abstract Writable call(Writable param) throws IOException;
 
+	/**
+	 * Returns the names offered to clients that ask for compact encoding when
+	 * they connect, or null to always use full names.
+	 */
+	protected NameDictionary getDictionary() {
+		return null;
+	}
+
+	/**
+	 * Returns true if {@link #getPriority(Writable)} can return anything but
+	 * zero.
+	 */
+	protected boolean hasPriorities() {
+		return false;
+	}
+
+	/**
+	 * Returns the priority of a call with param, passed to the call queue
+	 * through {@link Schedulable}.
+	 */
+	protected int getPriority(Writable param) {
+		return 0;
+	}
+
 	public static Server get() {
 		return (Server) SERVER.get();
 	}
 
 	protected Server(int port, Class paramClass, int handlerCount) {
+		this(port, paramClass, handlerCount, 0);
+	}
+
+	/**
+	 * A positive readerCount runs the server in reactor mode: connections are
+	 * multiplexed over that many selector threads instead of one blocking
+	 * thread each.
+	 */
+	protected Server(int port, Class paramClass, int handlerCount,
+			int readerCount) {
 		this.port = port;
 		this.paramClass = paramClass;
 		this.handlerCount = handlerCount;
-		this.maxQueuedCalls = handlerCount;
+		this.minHandlers = handlerCount;
+		this.maxHandlers = handlerCount;
+		this.readerCount = readerCount;
+		this.maxQueuedCalls = handlerCount * 100;
 		this.timeout = 10000;
 	}
 
+	/**
+	 * Lets the handler pool vary between min and max threads. It starts at
+	 * min, adds a handler when calls wait in the queue or find every handler
+	 * busy, and retires one that has had nothing to do for the timeout
+	 * period. Ignored with virtual threads.
+	 */
+	public void setHandlerBounds(int min, int max) {
+		this.minHandlers = Math.max(1, min);
+		this.maxHandlers = Math.max(minHandlers, max);
+	}
+
+	/** Returns the number of handler threads currently running. */
+	public int getHandlerCount() {
+		return liveHandlers.get();
+	}
+
+	/** Returns the fraction of handler threads currently running a call. */
+	public double getHandlerUtilization() {
+		int live = liveHandlers.get();
+		return live == 0 ? 0 : (double) busyHandlers.get() / live;
+	}
+
+	public void setMaxQueuedCalls(int maxQueuedCalls) {
+		this.maxQueuedCalls = maxQueuedCalls;
+	}
+
+	public void setCallQueue(CallQueue callQueue) {
+		this.callQueue = callQueue;
+	}
+
+	/**
+	 * Runs every call, and every blocking-mode connection, on its own virtual
+	 * thread instead of the fixed handler pool. At most maxQueuedCalls calls
+	 * execute at once.
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Coalesces responses written to a blocking-mode connection: handlers
+	 * finishing at about the same time share one write and flush, bounded by
+	 * maxBatchBytes and by waiting at most lingerMicros for company. Channel
+	 * connections always coalesce whatever is queued into one gathering
+	 * write.
+	 */
+	public void setWriteBatching(int maxBatchBytes, long lingerMicros) {
+		this.maxBatchBytes = maxBatchBytes;
+		this.lingerMicros = lingerMicros;
+	}
+
+	/**
+	 * Sets the body size from which responses are compressed on connections
+	 * whose client asked for compression. Zero declines compression.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Turns new calls away with a busy status once calls have waited in the
+	 * queue longer than targetMillis for at least intervalMillis, and takes
+	 * them again when a call gets through within the target. CoDel suggests
+	 * 5 and 100 milliseconds. Off by default.
+	 */
+	public void setLoadShedding(long targetMillis, long intervalMillis) {
+		this.admission = new AdmissionController(targetMillis, intervalMillis);
+	}
+
+	/**
+	 * Also accepts connections on a Unix domain socket at path, for clients
+	 * on this host, served by the reactor threads whatever the mode of the
+	 * TCP port. The file is replaced at start and removed at stop.
+	 */
+	public void setUnixSocket(String path) {
+		this.unixSocket = path;
+	}
+
+	/**
+	 * Lets local clients move their calls off the connection onto a pair of
+	 * rings in a memory-mapped file they create in directory, as set up by
+	 * {@link Client#setSharedMemory(int, String)}. Each such connection has a
+	 * thread polling its ring. Null, the default, declines. The directory
+	 * should be writable only by the user running the server and its
+	 * clients, not a shared one such as /tmp.
+	 */
+	public void setSharedMemory(String directory) {
+		this.ringDirectory = directory == null ? null : new File(directory)
+				.getAbsolutePath();
+	}
+
+	/** Returns how many calls were turned away as busy. */
+	public long getRejectedCallCount() {
+		return rejectedCalls.get();
+	}
+
+	/**
+	 * Returns how many calls were dropped unanswered because their client's
+	 * deadline passed while they were queued.
+	 */
+	public long getExpiredCallCount() {
+		return expiredCalls.get();
+	}
+
+	/** Returns the average number of responses sent per socket write. */
+	public double getMessagesPerFlush() {
+		long count = flushes.get();
+		return count == 0 ? 0 : (double) flushedMessages.get() / count;
+	}
+
 	public synchronized void start() throws IOException {
-		Listener listener = new Listener();
-		listener.start();
+		if (callQueue == null)
+			callQueue = new RingCallQueue(maxQueuedCalls);
 
-		for (int i = 0; i < handlerCount; i++) {
-			Handler handler = new Handler(i);
-			handler.start();
+		if (readerCount > 0 || unixSocket != null) {
+			responder = new Responder();
+			responder.start();
+			readers = new Reader[Math.max(1, readerCount)];
+			for (int i = 0; i < readers.length; i++) {
+				readers[i] = new Reader(i);
+				readers[i].start();
+			}
+		}
+		if (readerCount > 0) {
+			Acceptor acceptor = new Acceptor(null);
+			acceptor.start();
+		} else {
+			Listener listener = new Listener();
+			listener.start();
+		}
+		if (unixSocket != null) {
+			Acceptor acceptor = new Acceptor(unixSocket);
+			acceptor.start();
+		}
+
+		if (virtualThreads) {
+			Dispatcher dispatcher = new Dispatcher();
+			dispatcher.start();
+		} else {
+			for (int i = 0; i < minHandlers; i++) {
+				liveHandlers.incrementAndGet();
+				new Handler(handlerNumbers.getAndIncrement()).start();
+			}
 		}
 	}
 
@@ -215,6 +1232,334 @@ public abstract class Server {
 		}
 	}
 
+	private Call takeCall() {
+		Call call = (Call) callQueue.poll();
+		if (call == null) {
+			if (admission != null)
+				admission.queueEmpty();
+			Thread thread = Thread.currentThread();
+			idleHandlers.add(thread);
+			if (running && callQueue.size() == 0)
+				LockSupport.parkNanos(this,
+						TimeUnit.MILLISECONDS.toNanos(timeout));
+			idleHandlers.remove(thread);
+			return null;
+		}
+		if (admission != null || canGrow()) {
+			long now = System.nanoTime();
+			long sojourn = now - call.queued;
+			if (admission != null)
+				admission.observe(sojourn, now);
+			if (sojourn >= GROW_WAIT_NANOS)
+				growHandlers(now);
+		}
+		resumePaused();
+		return call;
+	}
+
+	private void processCall(Call call, DataInputBuffer request,
+			DataOutputBuffer response) throws IOException {
+		// the client has given up on a call that waited out its deadline
+		if (call.deadline != 0 && System.currentTimeMillis() > call.deadline) {
+			releaseFrame(call);
+			expiredCalls.incrementAndGet();
+			return;
+		}
+		if ((call.flags & Frame.BATCH) != 0) {
+			processBatch(call, request, response);
+			return;
+		}
+		String error = null;
+		Writable value = null;
+		try {
+			if (call.frame != null)
+				call.param = readParam(call, request);
+			value = call(call.param);
+		} catch (IOException e) {
+			error = getStackTrace(e);
+		} catch (Exception e) {
+			error = getStackTrace(e);
+		} finally {
+			releaseFrame(call);
+		}
+		if (call.batch != null) {
+			if (call.batch.complete(call.index, value, error))
+				sendBatch(call.batch, response);
+		} else if ((call.flags & Frame.ONE_WAY) == 0) {
+			respond(call, value, error, response);
+		}
+	}
+
+	private void processBatch(Call call, DataInputBuffer request,
+			DataOutputBuffer response) throws IOException {
+		Writable[] params;
+		try {
+			params = readBatch(call, request);
+		} catch (Exception e) {
+			if ((call.flags & Frame.ONE_WAY) == 0)
+				respond(call, null, getStackTrace(e), response);
+			return;
+		} finally {
+			releaseFrame(call);
+		}
+
+		Batch batch = new Batch(call, params.length);
+		if (params.length == 0) {
+			sendBatch(batch, response);
+			return;
+		}
+		Call[] parts = new Call[params.length];
+		for (int i = 0; i < params.length; i++) {
+			parts[i] = new Call(call.id, params[i], call.connection);
+			parts[i].batch = batch;
+			parts[i].index = i;
+			parts[i].priority = call.priority;
+		}
+		// the last part to finish sends the combined response
+		if ((call.flags & Frame.PARALLEL) != 0) {
+			for (int i = parts.length - 1; i > 0; i--) {
+				if (queueCall(parts[i]))
+					parts[i] = null;
+			}
+		}
+		for (int i = 0; i < parts.length; i++) {
+			if (parts[i] != null)
+				processCall(parts[i], request, response);
+		}
+	}
+
+	private void respond(Call call, Writable value, String error,
+			DataOutputBuffer response) throws IOException {
+		response.reset();
+		if (call.connection.framed)
+			Frame.begin(response, call.id, 0);
+		else
+			response.writeInt(call.id);
+		response.writeByte(error != null ? Frame.ERROR : Frame.OK);
+		if (error != null)
+			value = new UTF8(error);
+		NameDictionary previous = NameDictionary
+				.attach(call.connection.dictionary);
+		try {
+			value.write(response);
+		} finally {
+			NameDictionary.attach(previous);
+		}
+		transmit(call.connection, response);
+	}
+
+	private void sendBatch(Batch batch, DataOutputBuffer response)
+			throws IOException {
+		Call call = batch.call;
+		if ((call.flags & Frame.ONE_WAY) != 0)
+			return;
+		response.reset();
+		Frame.begin(response, call.id, Frame.BATCH);
+		WritableUtils.writeVInt(response, batch.values.length);
+		NameDictionary previous = NameDictionary
+				.attach(call.connection.dictionary);
+		try {
+			for (int i = 0; i < batch.values.length; i++) {
+				String error = batch.errors[i];
+				response.writeByte(error != null ? Frame.ERROR : Frame.OK);
+				if (error != null)
+					new UTF8(error).write(response);
+				else
+					batch.values[i].write(response);
+			}
+		} finally {
+			NameDictionary.attach(previous);
+		}
+		transmit(call.connection, response);
+	}
+
+	private void transmit(Connection connection, DataOutputBuffer response)
+			throws IOException {
+		if (connection.framed) {
+			Frame.finish(response, 0);
+			if (connection.codec != null)
+				connection.codec.compress(response);
+		}
+		try {
+			connection.sendResponse(response.getData(), response.getLength());
+		} catch (IOException e) {
+			connection.close();
+		}
+	}
+
+	private Writable readParam(Call call, DataInputBuffer request)
+			throws IOException {
+		NameDictionary previous = NameDictionary
+				.attach(call.connection.dictionary);
+		try {
+			openFrame(call, request);
+			Writable param = makeParam();
+			param.readFields(request);
+			return param;
+		} finally {
+			NameDictionary.attach(previous);
+		}
+	}
+
+	private Writable[] readBatch(Call call, DataInputBuffer request)
+			throws IOException {
+		NameDictionary previous = NameDictionary
+				.attach(call.connection.dictionary);
+		try {
+			openFrame(call, request);
+			BatchParam batch = new BatchParam(paramClass);
+			batch.readFields(request);
+			return batch.get();
+		} finally {
+			NameDictionary.attach(previous);
+		}
+	}
+
+	private void openFrame(Call call, DataInputBuffer request)
+			throws IOException {
+		if ((call.flags & Frame.COMPRESSED) != 0) {
+			if (call.connection.codec == null)
+				throw new IOException("Unexpected compressed frame");
+			DataOutputBuffer body = call.connection.codec.decompress(call.frame
+					.getData(), 0, call.frame.getLength(), bufferPool);
+			bufferPool.release(call.frame);
+			call.frame = body;
+			call.flags &= ~Frame.COMPRESSED;
+		}
+		request.reset(call.frame.getData(), call.frame.getLength());
+	}
+
+	private void releaseFrame(Call call) {
+		if (call.frame != null) {
+			bufferPool.release(call.frame);
+			call.frame = null;
+		}
+	}
+
+	static String getStackTrace(Throwable throwable) {
+		if (throwable.getStackTrace().length == 0)
+			return throwable.toString();
+		StringWriter stringWriter = new StringWriter();
+		PrintWriter printWriter = new PrintWriter(stringWriter);
+		throwable.printStackTrace(printWriter);
+		printWriter.flush();
+		return stringWriter.toString();
+	}
+
+	/**
+	 * Sets the priority of a newly read call for the call queue. When the
+	 * server has priorities, framed params are decoded here rather than by
+	 * the handler, as the priority depends on them.
+	 */
+	private void prioritize(Call call) {
+		if (!hasPriorities() || (call.flags & Frame.BATCH) != 0)
+			return;
+		try {
+			if (call.frame != null) {
+				call.param = readParam(call, call.connection.request);
+				releaseFrame(call);
+			}
+			call.priority = getPriority(call.param);
+		} catch (Exception e) {
+			// a handler decodes it again and reports the failure
+		}
+	}
+
+	/** Echoes a heartbeat from the reader, ahead of any queued calls. */
+	private boolean answerHeartbeat(Call call) {
+		if ((call.flags & Frame.HEARTBEAT) == 0)
+			return false;
+		releaseFrame(call);
+		try {
+			DataOutputBuffer response = new DataOutputBuffer();
+			Frame.begin(response, call.id, Frame.HEARTBEAT);
+			transmit(call.connection, response);
+		} catch (IOException e) {
+			call.connection.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Answers a newly read call at once with a busy status, instead of
+	 * queueing it, while the admission controller reports overload.
+	 */
+	private boolean admit(Call call) {
+		if (admission == null || admission.admit())
+			return true;
+		rejectedCalls.incrementAndGet();
+		releaseFrame(call);
+		if ((call.flags & Frame.ONE_WAY) != 0)
+			return false;
+		try {
+			DataOutputBuffer response = new DataOutputBuffer();
+			if (call.connection.framed) {
+				Frame.begin(response, call.id, 0);
+				response.writeByte(Frame.BUSY);
+			} else {
+				// older clients only know success and failure
+				response.writeInt(call.id);
+				response.writeByte(Frame.ERROR);
+			}
+			new UTF8("Server busy on port " + port).write(response);
+			transmit(call.connection, response);
+		} catch (IOException e) {
+			call.connection.close();
+		}
+		return false;
+	}
+
+	private boolean queueCall(Call call) {
+		call.queued = System.nanoTime();
+		if (!callQueue.offer(call))
+			return false;
+		Thread handler = (Thread) idleHandlers.poll();
+		if (handler != null)
+			LockSupport.unpark(handler);
+		else if (canGrow() && busyHandlers.get() >= liveHandlers.get())
+			growHandlers(call.queued);
+		return true;
+	}
+
+	private boolean canGrow() {
+		return !virtualThreads && liveHandlers.get() < maxHandlers;
+	}
+
+	private void growHandlers(long now) {
+		long last = lastGrowth.get();
+		if (now - last < GROW_WAIT_NANOS
+				|| !lastGrowth.compareAndSet(last, now))
+			return;
+		int live = liveHandlers.get();
+		if (live < maxHandlers && liveHandlers.compareAndSet(live, live + 1)) {
+			Handler handler = new Handler(handlerNumbers.getAndIncrement());
+			handler.start();
+		}
+	}
+
+	private boolean retireHandler() {
+		int live = liveHandlers.get();
+		return live > minHandlers && liveHandlers.compareAndSet(live, live - 1);
+	}
+
+	private void pause(Connection connection) {
+		// once is enough until it is resumed
+		if (!connection.paused.compareAndSet(false, true))
+			return;
+		pausedConnections.add(connection);
+		// a handler may have drained the queue before we were visible to it
+		if (callQueue.size() < callQueue.capacity())
+			resumePaused();
+	}
+
+	private void resumePaused() {
+		Connection paused = (Connection) pausedConnections.poll();
+		if (paused != null) {
+			paused.paused.set(false);
+			paused.resume();
+		}
+	}
+
 	private Writable makeParam() {
 		Writable param;
 		try {
@@ -0,0 +1,17 @@
+package org.track.rpc;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a server turned a call away without running it because it was
+ * overloaded. The call had no effect, so it is safe to retry, preferably
+ * after backing off or against another server.
+ */
+public class ServerBusyException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ServerBusyException(String message) {
+		super(message);
+	}
+}
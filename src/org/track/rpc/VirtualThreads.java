@@ -0,0 +1,65 @@
+package org.track.rpc;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates virtual threads when the running JVM has them, looked up
+ * reflectively so the code still builds and runs on older releases, where a
+ * platform daemon thread is created instead.
+ */
+class VirtualThreads {
+
+	private static final Method OFVIRTUAL;
+	private static final Method NAME;
+	private static final Method UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual", new Class[0]);
+			Class builder = ofVirtual.getReturnType();
+			name = builder.getMethod("name", new Class[] { String.class });
+			unstarted = builder.getMethod("unstarted",
+					new Class[] { Runnable.class });
+		} catch (NoSuchMethodException e) {
+			ofVirtual = null;
+		}
+		OFVIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+	}
+
+	private VirtualThreads() {
+	}
+
+	public static boolean isSupported() {
+		return OFVIRTUAL != null;
+	}
+
+	public static Thread newThread(Runnable runnable, String name) {
+		if (OFVIRTUAL != null) {
+			try {
+				Object builder = OFVIRTUAL.invoke(null, new Object[0]);
+				builder = NAME.invoke(builder, new Object[] { name });
+				return (Thread) UNSTARTED.invoke(builder,
+						new Object[] { runnable });
+			} catch (Exception e) {
+				throw new RuntimeException(e.toString());
+			}
+		}
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	public static Thread newThread(Runnable runnable, String name,
+			boolean virtual) {
+		if (virtual)
+			return newThread(runnable, name);
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+}
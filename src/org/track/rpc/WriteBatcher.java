@@ -0,0 +1,112 @@
+package org.track.rpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.track.io.DataOutputBuffer;
+
+/**
+ * Coalesces messages from concurrent senders into one write and flush. The
+ * first sender to find no flush in progress becomes the leader: it lingers
+ * briefly so others can append, then writes everything collected so far and
+ * keeps going until nothing is left. Everyone else appends and returns. A
+ * sender that would push the batch past its size limit wakes the leader and
+ * waits for room.
+ */
+class WriteBatcher {
+
+	private final OutputStream out;
+	private final int maxBatchBytes;
+	private final long lingerNanos;
+	private final AtomicLong flushes;
+	private final AtomicLong messages;
+
+	private DataOutputBuffer pending = new DataOutputBuffer();
+	private DataOutputBuffer writing = new DataOutputBuffer();
+	private int pendingMessages;
+	private int waiting;
+	private Thread leader;
+
+	public WriteBatcher(OutputStream out, int maxBatchBytes,
+			long lingerMicros, AtomicLong flushes, AtomicLong messages) {
+		this.out = out;
+		this.maxBatchBytes = maxBatchBytes;
+		this.lingerNanos = lingerMicros * 1000;
+		this.flushes = flushes;
+		this.messages = messages;
+	}
+
+	public void write(byte[] data, int length) throws IOException {
+		synchronized (this) {
+			while (leader != null && pending.getLength() > 0
+					&& pending.getLength() + length > maxBatchBytes) {
+				waiting++;
+				LockSupport.unpark(leader);
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted waiting to write");
+				} finally {
+					waiting--;
+				}
+			}
+			pending.write(data, 0, length);
+			pendingMessages++;
+			if (leader != null) {
+				if (pending.getLength() >= maxBatchBytes)
+					LockSupport.unpark(leader);
+				return;
+			}
+			leader = Thread.currentThread();
+		}
+
+		if (lingerNanos > 0) {
+			long deadline = System.nanoTime() + lingerNanos;
+			long remaining = lingerNanos;
+			while (remaining > 0 && !isFull()) {
+				LockSupport.parkNanos(this, remaining);
+				remaining = deadline - System.nanoTime();
+			}
+		}
+		flushAll();
+	}
+
+	private synchronized boolean isFull() {
+		return waiting > 0 || pending.getLength() >= maxBatchBytes;
+	}
+
+	private void flushAll() throws IOException {
+		try {
+			while (true) {
+				int count;
+				synchronized (this) {
+					if (pendingMessages == 0) {
+						leader = null;
+						return;
+					}
+					DataOutputBuffer swap = writing;
+					writing = pending;
+					pending = swap;
+					pending.reset();
+					count = pendingMessages;
+					pendingMessages = 0;
+					notifyAll();
+				}
+				out.write(writing.getData(), 0, writing.getLength());
+				out.flush();
+				flushes.incrementAndGet();
+				messages.addAndGet(count);
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				leader = null;
+				pending.reset();
+				pendingMessages = 0;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+}
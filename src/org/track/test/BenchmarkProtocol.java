@@ -0,0 +1,6 @@
+package org.track.test;
+
+public interface BenchmarkProtocol {
+
+	public void block();
+}
@@ -0,0 +1,111 @@
+package org.track.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.track.rpc.IntCallMap;
+
+/**
+ * Replays the client's pending-call bookkeeping, one id allocation, one put
+ * and one remove per call, through the old synchronized counter with a boxed
+ * Hashtable and through the atomic counter with IntCallMap. Reports calls per
+ * second and bytes allocated per call.
+ */
+public class CallMapBenchmark {
+
+	private static final Object CALL = new Object();
+
+	private interface Path {
+		public void call();
+	}
+
+	private static class HashtablePath implements Path {
+		private Hashtable calls = new Hashtable();
+		private int counter;
+
+		public void call() {
+			int id;
+			synchronized (this) {
+				id = counter++;
+			}
+			calls.put(new Integer(id), CALL);
+			calls.remove(new Integer(id));
+		}
+	}
+
+	private static class IntCallMapPath implements Path {
+		private IntCallMap calls = new IntCallMap();
+		private AtomicInteger counter = new AtomicInteger();
+
+		public void call() {
+			int id = counter.getAndIncrement();
+			calls.put(id, CALL);
+			calls.remove(id);
+		}
+	}
+
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void run(String name, final Path path, int threadCount,
+			final int calls) throws InterruptedException {
+		final Object startLine = new Object();
+		final boolean[] started = new boolean[1];
+		final AtomicLong allocated = new AtomicLong();
+		Thread[] threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					synchronized (startLine) {
+						while (!started[0]) {
+							try {
+								startLine.wait();
+							} catch (InterruptedException e) {
+							}
+						}
+					}
+					long before = allocatedBytes();
+					for (int j = 0; j < calls; j++) {
+						path.call();
+					}
+					allocated.addAndGet(allocatedBytes() - before);
+				}
+			};
+			threads[i].start();
+		}
+		long start = System.nanoTime();
+		synchronized (startLine) {
+			started[0] = true;
+			startLine.notifyAll();
+		}
+		for (int i = 0; i < threadCount; i++) {
+			threads[i].join();
+		}
+		long nanos = System.nanoTime() - start;
+		long total = (long) threadCount * calls;
+		System.out.println(name + ": " + (total * 1000000000L / nanos)
+				+ " calls/s, "
+				+ (allocated.get() / total)
+				+ " bytes/call");
+	}
+
+	public static void main(String args[]) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+		// warm both paths before measuring
+		for (int i = 0; i < 3; i++) {
+			run("warmup hashtable", new HashtablePath(), threads, calls / 10);
+			run("warmup intcallmap", new IntCallMapPath(), threads, calls / 10);
+		}
+		run("Hashtable + synchronized counter", new HashtablePath(),
+				threads, calls);
+		run("IntCallMap + AtomicInteger", new IntCallMapPath(), threads,
+				calls);
+	}
+}
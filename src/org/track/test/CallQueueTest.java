@@ -0,0 +1,237 @@
+package org.track.test;
+
+import java.net.InetAddress;
+
+import org.track.rpc.FairCallQueue;
+import org.track.rpc.IntCallMap;
+import org.track.rpc.RingCallQueue;
+import org.track.rpc.Schedulable;
+
+/**
+ * Checks the call queues and the pending call map: that the ring queue
+ * hands every call to exactly one consumer, in order per producer, while
+ * many threads offer and poll at once; that the call map keeps every entry
+ * through concurrent puts and removes of colliding keys; and that the fair
+ * queue takes turns by source, weight and priority. Exits non-zero on
+ * failure.
+ */
+public class CallQueueTest {
+
+	private static final int THREADS = 4;
+	private static final int CALLS = 100000;
+
+	private static int failures;
+
+	/** A call from a source, with a priority and a name to tell it by. */
+	private static class TestCall implements Schedulable {
+		private Object source;
+		private InetAddress host;
+		private int priority;
+		private String name;
+
+		public TestCall(Object source, InetAddress host, int priority,
+				String name) {
+			this.source = source;
+			this.host = host;
+			this.priority = priority;
+			this.name = name;
+		}
+
+		public Object getConnection() {
+			return source;
+		}
+
+		public InetAddress getRemoteAddress() {
+			return host;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public String toString() {
+			return name;
+		}
+	}
+
+	private static void check(String name, boolean ok) {
+		System.out.println((ok ? "ok   " : "FAIL ") + name);
+		if (!ok)
+			failures++;
+	}
+
+	private static void testRingBounds() {
+		RingCallQueue queue = new RingCallQueue(3);
+		int offered = 0;
+		while (queue.offer(Integer.valueOf(offered)))
+			offered++;
+		boolean ordered = queue.size() == 4;
+		for (int i = 0; i < offered; i++) {
+			ordered &= Integer.valueOf(i).equals(queue.poll());
+		}
+		check("ring queue of 3 holds 4, in order", offered == 4
+				&& queue.capacity() == 4 && ordered && queue.poll() == null);
+		check("ring queue of 1 holds 2",
+				new RingCallQueue(1).capacity() == 2);
+	}
+
+	private static void testRingContention() throws InterruptedException {
+		final RingCallQueue queue = new RingCallQueue(64);
+		final int[] seen = new int[THREADS * CALLS];
+		final boolean[] ordered = new boolean[] { true };
+		Thread[] threads = new Thread[THREADS * 2];
+		for (int i = 0; i < THREADS; i++) {
+			final int producer = i;
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < CALLS; j++) {
+						Integer call = Integer.valueOf(producer * CALLS + j);
+						while (!queue.offer(call))
+							Thread.yield();
+					}
+				}
+			};
+			threads[THREADS + i] = new Thread() {
+				public void run() {
+					int[] last = new int[THREADS];
+					for (int j = 0; j < THREADS; j++) {
+						last[j] = -1;
+					}
+					for (int j = 0; j < CALLS; j++) {
+						Integer call;
+						while ((call = (Integer) queue.poll()) == null)
+							Thread.yield();
+						int value = call.intValue();
+						synchronized (seen) {
+							seen[value]++;
+						}
+						// one consumer sees each producer's calls in order
+						int producer = value / CALLS;
+						if (value % CALLS <= last[producer])
+							ordered[0] = false;
+						last[producer] = value % CALLS;
+					}
+				}
+			};
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+		boolean once = true;
+		for (int i = 0; i < seen.length; i++) {
+			once &= seen[i] == 1;
+		}
+		check("ring queue hands each of " + seen.length
+				+ " calls out once under contention", once
+				&& queue.size() == 0);
+		check("ring queue keeps each producer's order", ordered[0]);
+	}
+
+	private static void testCallMap() throws InterruptedException {
+		final IntCallMap map = new IntCallMap();
+		final boolean[] found = new boolean[] { true };
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int thread = i;
+			threads[i] = new Thread() {
+				public void run() {
+					// keys that are multiples of the segment count share a
+					// segment and collide, as ids of one connection often do
+					for (int j = 0; j < CALLS; j++) {
+						int key = (j * THREADS + thread) * 16;
+						String value = "v" + key;
+						map.put(key, value);
+						if (j >= 100) {
+							int old = ((j - 100) * THREADS + thread) * 16;
+							if (!("v" + old).equals(map.remove(old)))
+								found[0] = false;
+						}
+						if (map.get(key) != value)
+							found[0] = false;
+					}
+				}
+			};
+		}
+		for (int i = 0; i < THREADS; i++) {
+			threads[i].start();
+		}
+		for (int i = 0; i < THREADS; i++) {
+			threads[i].join();
+		}
+		check("call map keeps entries through concurrent removes", found[0]
+				&& map.size() == THREADS * 100);
+		Object[] left = map.removeAll();
+		check("call map gives back what is left",
+				left.length == THREADS * 100 && map.size() == 0
+						&& map.get(0) == null);
+	}
+
+	private static String drain(FairCallQueue queue) {
+		StringBuffer order = new StringBuffer();
+		Object call;
+		while ((call = queue.poll()) != null) {
+			if (order.length() > 0)
+				order.append(' ');
+			order.append(call);
+		}
+		return order.toString();
+	}
+
+	private static void testFair() throws Exception {
+		InetAddress host = InetAddress.getByName("127.0.0.1");
+		InetAddress other = InetAddress.getByName("127.0.0.2");
+		Object a = "a";
+		Object b = "b";
+		Object c = "c";
+
+		FairCallQueue queue = new FairCallQueue(100);
+		queue.offer(new TestCall(a, host, 0, "a1"));
+		queue.offer(new TestCall(a, host, 0, "a2"));
+		queue.offer(new TestCall(a, host, 0, "a3"));
+		queue.offer(new TestCall(b, host, 0, "b1"));
+		queue.offer(new TestCall(c, host, 0, "c1"));
+		String order = drain(queue);
+		check("fair queue takes turns: " + order, "a1 b1 c1 a2 a3"
+				.equals(order));
+
+		queue.setWeight(a, 2);
+		queue.offer(new TestCall(a, host, 0, "a1"));
+		queue.offer(new TestCall(a, host, 0, "a2"));
+		queue.offer(new TestCall(a, host, 0, "a3"));
+		queue.offer(new TestCall(b, host, 0, "b1"));
+		queue.offer(new TestCall(b, host, 0, "b2"));
+		order = drain(queue);
+		check("fair queue serves by weight: " + order, "a1 a2 b1 a3 b2"
+				.equals(order));
+
+		queue = new FairCallQueue(3, 2, false);
+		queue.offer(new TestCall(a, host, 0, "low"));
+		queue.offer(new TestCall(b, host, 1, "high"));
+		queue.offer(new TestCall(c, host, 5, "clamped"));
+		boolean refused = !queue.offer(new TestCall(c, host, 1, "full"));
+		order = drain(queue);
+		check("fair queue serves higher priorities first: " + order,
+				"high clamped low".equals(order) && refused);
+
+		queue = new FairCallQueue(100, 1, true);
+		queue.offer(new TestCall(a, host, 0, "a1"));
+		queue.offer(new TestCall(b, host, 0, "b1"));
+		queue.offer(new TestCall(c, other, 0, "c1"));
+		order = drain(queue);
+		// a and b come from one host, so c goes between them
+		check("fair queue shares turns by host: " + order, "a1 c1 b1"
+				.equals(order));
+	}
+
+	public static void main(String args[]) throws Exception {
+		testRingBounds();
+		testRingContention();
+		testCallMap();
+		testFair();
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+}
@@ -0,0 +1,6 @@
+package org.track.test;
+
+public interface EchoProtocol {
+
+	public String echo(String data);
+}
@@ -0,0 +1,135 @@
+package org.track.test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.track.io.UTF8;
+import org.track.io.Writable;
+import org.track.rpc.Client;
+import org.track.rpc.Server;
+
+/**
+ * Checks that the fan-out, streamed and hedged calls each count a param that
+ * fails to send as one failure, over both the thread per connection and the
+ * reactor clients. Exits non-zero on failure.
+ */
+public class FanOutTest extends Server {
+
+	private static int failures;
+
+	/** A param that cannot be written the first times it is sent. */
+	private static class FailingParam implements Writable {
+		private int failures;
+
+		public FailingParam(int failures) {
+			this.failures = failures;
+		}
+
+		public void write(DataOutput out) throws IOException {
+			if (failures-- > 0)
+				throw new IOException("cannot write");
+			new UTF8("again").write(out);
+		}
+
+		public void readFields(DataInput in) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	public FanOutTest(int port) {
+		super(port, UTF8.class, 2);
+	}
+
+	public Writable call(Writable param) throws IOException {
+		return param;
+	}
+
+	private static void check(String name, boolean ok) {
+		System.out.println((ok ? "ok   " : "FAIL ") + name);
+		if (!ok)
+			failures++;
+	}
+
+	private static void testFanOut(String name, Client client,
+			InetSocketAddress address) {
+		Writable[] params = new Writable[] { new FailingParam(1),
+				new UTF8("b") };
+		InetSocketAddress[] addresses = new InetSocketAddress[] { address,
+				address };
+		try {
+			Writable[] values = client.call(params, addresses, 2);
+			check(name + ": fan-out with a failed send", values[0] == null
+					&& "b".equals(String.valueOf(values[1])));
+		} catch (IOException e) {
+			check(name + ": fan-out with a failed send (" + e + ")", false);
+		}
+	}
+
+	private static void testStreamed(String name, Client client,
+			InetSocketAddress address) throws InterruptedException {
+		Writable[] params = new Writable[] { new FailingParam(1),
+				new UTF8("b") };
+		InetSocketAddress[] addresses = new InetSocketAddress[] { address,
+				address };
+		final int[] counts = new int[params.length];
+		client.call(params, addresses, new Client.Callback() {
+			public void callComplete(int index, Writable value,
+					IOException failure) {
+				synchronized (counts) {
+					counts[index]++;
+				}
+			}
+		});
+		Thread.sleep(500);
+		synchronized (counts) {
+			check(name + ": streamed callbacks " + counts[0] + ","
+					+ counts[1], counts[0] == 1 && counts[1] == 1);
+		}
+	}
+
+	private static void testHedged(String name, Client client,
+			InetSocketAddress address) {
+		InetSocketAddress[] addresses = new InetSocketAddress[] { address,
+				address };
+		try {
+			Writable value = client.call(new FailingParam(1), addresses,
+					0.95);
+			check(name + ": hedge after a failed send", "again".equals(String
+					.valueOf(value)));
+		} catch (IOException e) {
+			check(name + ": hedge after a failed send (" + e + ")", false);
+		}
+		try {
+			client.call(new UTF8("a"), addresses, 95);
+			check(name + ": percentile rejected", false);
+		} catch (IllegalArgumentException e) {
+			check(name + ": percentile rejected", true);
+		} catch (IOException e) {
+			check(name + ": percentile rejected (" + e + ")", false);
+		}
+	}
+
+	public static void main(String args[]) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8096;
+		FanOutTest server = new FanOutTest(port);
+		server.start();
+		Thread.sleep(200);
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+
+		Client threaded = new Client(UTF8.class);
+		Client reactor = new Client(UTF8.class);
+		reactor.setReactorCount(1);
+		testFanOut("threaded", threaded, address);
+		testFanOut("reactor", reactor, address);
+		testStreamed("threaded", threaded, address);
+		testStreamed("reactor", reactor, address);
+		testHedged("threaded", threaded, address);
+		testHedged("reactor", reactor, address);
+
+		server.stop();
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+}
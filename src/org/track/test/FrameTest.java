@@ -0,0 +1,349 @@
+package org.track.test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.track.io.DataInputBuffer;
+import org.track.io.DataOutputBuffer;
+import org.track.io.NameDictionary;
+import org.track.io.ObjectWritable;
+import org.track.io.UTF8;
+import org.track.io.Writable;
+import org.track.rpc.Client;
+import org.track.rpc.Server;
+
+/**
+ * Checks the framed wire format against both the blocking and the reactor
+ * servers: frames that arrive a few bytes at a time or several to a write,
+ * a length over the limit, compressed bodies, batches and class names
+ * written through a dictionary. Raw frames are written by hand, so the
+ * constants below must follow the protocol. Exits non-zero on failure.
+ */
+public class FrameTest extends Server {
+
+	private static final int MAGIC = 0x54524b21;
+	private static final int FRAMED = 0x02;
+	private static final int COMPRESSED = 0x04;
+	private static final int COMPRESSED_FRAME = 0x01;
+	private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+	private static int failures;
+
+	/**
+	 * A param of many random bytes, so that it does not shrink when
+	 * compressed, that the server is never meant to read.
+	 */
+	private static class LargeParam implements Writable {
+		private byte[] data;
+
+		public LargeParam(int size) {
+			this.data = new byte[size];
+			new Random(size).nextBytes(data);
+		}
+
+		public void write(DataOutput out) throws IOException {
+			out.write(data);
+		}
+
+		public void readFields(DataInput in) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	public FrameTest(int port, int readerCount) {
+		super(port, UTF8.class, 2, readerCount);
+	}
+
+	public Writable call(Writable param) throws IOException {
+		if ("fail".equals(param.toString()))
+			throw new IOException("failed as asked");
+		return param;
+	}
+
+	private static void check(String name, boolean ok) {
+		System.out.println((ok ? "ok   " : "FAIL ") + name);
+		if (!ok)
+			failures++;
+	}
+
+	/** Opens a raw connection and asks for frames, and maybe compression. */
+	private static Socket open(int port, int flags) throws IOException {
+		Socket socket = new Socket("127.0.0.1", port);
+		socket.setSoTimeout(5000);
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.writeInt(MAGIC);
+		out.writeByte(1);
+		out.writeInt(flags);
+		out.flush();
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		if (in.readInt() != MAGIC)
+			throw new IOException("Bad reply header");
+		in.readByte();
+		if (in.readInt() != flags)
+			throw new IOException("Server declined " + flags);
+		return socket;
+	}
+
+	private static byte[] frame(int id, int flags, String value)
+			throws IOException {
+		DataOutputBuffer body = new DataOutputBuffer();
+		new UTF8(value).write(body);
+		return frame(id, flags, body.getData(), body.getLength());
+	}
+
+	private static byte[] frame(int id, int flags, byte[] body, int length)
+			throws IOException {
+		DataOutputBuffer buffer = new DataOutputBuffer();
+		buffer.writeInt(length);
+		buffer.writeInt(id);
+		buffer.writeByte(flags);
+		buffer.write(body, 0, length);
+		byte[] frame = new byte[buffer.getLength()];
+		System.arraycopy(buffer.getData(), 0, frame, 0, frame.length);
+		return frame;
+	}
+
+	/**
+	 * Reads count responses, which handlers may finish in any order, into
+	 * an array by call id: each value, or "error" for a failed call.
+	 */
+	private static String[] responses(DataInputStream in, int count)
+			throws IOException {
+		String[] values = new String[8];
+		for (int i = 0; i < count; i++) {
+			byte[] body = new byte[in.readInt()];
+			int id = in.readInt();
+			int flags = in.readByte();
+			in.readFully(body);
+			if ((flags & COMPRESSED_FRAME) != 0)
+				body = inflate(body);
+			DataInputBuffer response = new DataInputBuffer();
+			response.reset(body, body.length);
+			values[id] = response.readByte() != 0 ? "error" : UTF8
+					.readString(response);
+		}
+		return values;
+	}
+
+	/** Returns a compressed body, its length and the deflated bytes, whole. */
+	private static byte[] inflate(byte[] body) throws IOException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(body, 4, body.length - 4);
+		byte[] inflated = new byte[ByteBuffer.wrap(body).getInt()];
+		try {
+			inflater.inflate(inflated);
+		} catch (DataFormatException e) {
+			throw new IOException(e.toString());
+		}
+		return inflated;
+	}
+
+	private static void testRaw(String name, int port) throws Exception {
+		Socket socket = open(port, FRAMED);
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				socket.getInputStream()));
+
+		byte[] split = frame(1, 0, "split");
+		for (int i = 0; i < split.length; i += 3) {
+			out.write(split, i, Math.min(3, split.length - i));
+			out.flush();
+			Thread.sleep(5);
+		}
+		check(name + ": frame sent a few bytes at a time", "split"
+				.equals(responses(in, 1)[1]));
+
+		byte[] first = frame(2, 0, "first");
+		byte[] second = frame(3, 0, "second");
+		byte[] both = new byte[first.length + second.length];
+		System.arraycopy(first, 0, both, 0, first.length);
+		System.arraycopy(second, 0, both, first.length, second.length);
+		out.write(both);
+		out.flush();
+		String[] values = responses(in, 2);
+		check(name + ": two frames in one write", "first".equals(values[2])
+				&& "second".equals(values[3]));
+
+		// the server may close before the header is all written
+		int next;
+		try {
+			out.writeInt(MAX_LENGTH + 1);
+			out.writeInt(4);
+			out.writeByte(0);
+			out.flush();
+			next = in.read();
+		} catch (IOException e) {
+			next = -1;
+		}
+		check(name + ": oversize frame closes the connection", next == -1);
+		socket.close();
+	}
+
+	private static void testCorruptCompressed(String name, int port)
+			throws Exception {
+		Socket socket = open(port, FRAMED | COMPRESSED);
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				socket.getInputStream()));
+		DataOutputBuffer body = new DataOutputBuffer();
+		body.writeInt(1000);
+		body.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		out.write(frame(1, COMPRESSED_FRAME, body.getData(), body
+				.getLength()));
+		out.write(frame(2, 0, "after"));
+		out.flush();
+		String[] values = responses(in, 2);
+		check(name + ": corrupt compressed frame fails alone", "error"
+				.equals(values[1])
+				&& "after".equals(values[2]));
+		socket.close();
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuffer buffer = new StringBuffer();
+		for (int i = 0; i < count; i++) {
+			buffer.append(c);
+		}
+		return buffer.toString();
+	}
+
+	private static String random(int count) {
+		Random random = new Random(count);
+		StringBuffer buffer = new StringBuffer();
+		for (int i = 0; i < count; i++) {
+			buffer.append((char) ('!' + random.nextInt(90)));
+		}
+		return buffer.toString();
+	}
+
+	private static void testClient(String name, Client client,
+			InetSocketAddress address) throws Exception {
+		// as long as a UTF8 gets
+		String[] values = new String[] { "small", repeat('a', 20000),
+				random(20000) };
+		boolean echoed = true;
+		for (int i = 0; i < values.length; i++) {
+			Writable value = client.call(new UTF8(values[i]), address);
+			echoed &= values[i].equals(value.toString());
+		}
+		check(name + ": compressed and plain bodies", echoed);
+
+		CompletableFuture pending = client.callAsync(new UTF8("pending"),
+				address);
+		try {
+			client.call(new LargeParam(MAX_LENGTH), address);
+			check(name + ": oversize call refused", false);
+		} catch (IOException e) {
+			check(name + ": oversize call refused", true);
+		}
+		check(name + ": other calls survive an oversize one", "pending"
+				.equals(pending.get().toString())
+				&& "after".equals(client.call(new UTF8("after"), address)
+						.toString()));
+
+		Writable[] params = new Writable[50];
+		for (int i = 0; i < params.length; i++) {
+			params[i] = new UTF8("v" + i);
+		}
+		for (int parallel = 0; parallel < 2; parallel++) {
+			Writable[] batch = client.call(params, address, parallel == 1);
+			boolean ordered = batch.length == params.length;
+			for (int i = 0; ordered && i < params.length; i++) {
+				ordered = ("v" + i).equals(batch[i].toString());
+			}
+			check(name + ": batch of " + params.length
+					+ (parallel == 1 ? " in parallel" : ""), ordered);
+		}
+		try {
+			client.call(new Writable[] { new UTF8("a"), new UTF8("fail") },
+					address, false);
+			check(name + ": failed call in a batch", false);
+		} catch (RemoteException e) {
+			check(name + ": failed call in a batch", true);
+		}
+	}
+
+	private static void testDictionary() throws IOException {
+		NameDictionary dictionary = new NameDictionary();
+		ObjectWritable.addBuiltinClasses(dictionary);
+		dictionary.addClass(String[].class);
+		DataOutputBuffer buffer = new DataOutputBuffer();
+		dictionary.write(buffer);
+		NameDictionary copy = new NameDictionary();
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(buffer.getData(), buffer.getLength());
+		copy.readFields(in);
+		check("dictionary round trip", copy.equals(dictionary)
+				&& copy.getId(String.class.getName()) == dictionary
+						.getId(String.class.getName()));
+
+		// the builtin dictionary lacks String[], so its name is written out
+		NameDictionary builtin = new NameDictionary();
+		ObjectWritable.addBuiltinClasses(builtin);
+		NameDictionary[] dictionaries = new NameDictionary[] { null, builtin,
+				dictionary };
+		int[] lengths = new int[dictionaries.length];
+		boolean read = true;
+		Object value = new String[] { "a", "b" };
+		for (int i = 0; i < dictionaries.length; i++) {
+			NameDictionary previous = NameDictionary.attach(dictionaries[i]);
+			try {
+				DataOutputBuffer out = new DataOutputBuffer();
+				ObjectWritable.writeObject(out, value, String[].class);
+				lengths[i] = out.getLength();
+				in.reset(out.getData(), out.getLength());
+				String[] strings = (String[]) ObjectWritable.readObject(in);
+				read &= strings.length == 2 && "b".equals(strings[1]);
+			} finally {
+				NameDictionary.attach(previous);
+			}
+		}
+		check("class names by id and in full both read back", read
+				&& lengths[2] < lengths[1]);
+	}
+
+	public static void main(String args[]) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8098;
+		FrameTest blocking = new FrameTest(port, 0);
+		blocking.setCompressionThreshold(100);
+		blocking.start();
+		FrameTest reactor = new FrameTest(port + 1, 1);
+		reactor.setCompressionThreshold(100);
+		reactor.start();
+		Thread.sleep(200);
+
+		testRaw("blocking server", port);
+		testRaw("reactor server", port + 1);
+		testCorruptCompressed("blocking server", port);
+		testCorruptCompressed("reactor server", port + 1);
+
+		Client threaded = new Client(UTF8.class);
+		threaded.setCompressionThreshold(100);
+		Client channels = new Client(UTF8.class);
+		channels.setCompressionThreshold(100);
+		channels.setReactorCount(1);
+		testClient("threaded client", threaded, new InetSocketAddress(
+				"127.0.0.1", port));
+		testClient("reactor client", channels, new InetSocketAddress(
+				"127.0.0.1", port + 1));
+
+		testDictionary();
+
+		blocking.stop();
+		reactor.stop();
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+}
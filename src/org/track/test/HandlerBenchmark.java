@@ -0,0 +1,82 @@
+package org.track.test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.track.rpc.RPC;
+import org.track.rpc.Server;
+
+public class HandlerBenchmark implements BenchmarkProtocol {
+
+	private int blockMillis;
+
+	public HandlerBenchmark(int blockMillis) {
+		this.blockMillis = blockMillis;
+	}
+
+	public void block() {
+		try {
+			Thread.sleep(blockMillis);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private static long run(Server server, int port, int callers,
+			final int calls) throws IOException, InterruptedException {
+		server.start();
+		Thread.sleep(500);
+		final BenchmarkProtocol proxy = (BenchmarkProtocol) RPC.getProxy(
+				BenchmarkProtocol.class, new InetSocketAddress("127.0.0.1",
+						port));
+		proxy.block();
+
+		Thread[] threads = new Thread[callers];
+		for (int i = 0; i < callers; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < calls; j++) {
+						proxy.block();
+					}
+				}
+			};
+		}
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < callers; i++) {
+			threads[i].start();
+		}
+		for (int i = 0; i < callers; i++) {
+			threads[i].join();
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	public static void main(String args[]) throws Exception {
+		int callers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int blockMillis = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		int handlers = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+		int port = 8091;
+
+		Server fixed = RPC.getServer(new HandlerBenchmark(blockMillis), port,
+				handlers, 2);
+		fixed.setMaxQueuedCalls(callers);
+		long fixedMillis = run(fixed, port, callers, calls);
+
+		Server virtual = RPC.getServer(new HandlerBenchmark(blockMillis),
+				port + 1, handlers, 2);
+		virtual.setMaxQueuedCalls(callers);
+		virtual.setVirtualThreads(true);
+		long virtualMillis = run(virtual, port + 1, callers, calls);
+
+		long total = (long) callers * calls;
+		System.out.println(callers + " callers x " + calls + " calls, "
+				+ blockMillis + "ms blocking method");
+		System.out.println("fixed pool of " + handlers + " handlers: "
+				+ fixedMillis + "ms, " + (total * 1000 / fixedMillis)
+				+ " calls/s");
+		System.out.println("virtual threads: " + virtualMillis + "ms, "
+				+ (total * 1000 / virtualMillis) + " calls/s");
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,162 @@
+package org.track.test;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+
+import org.track.io.UTF8;
+import org.track.rpc.HashRing;
+import org.track.rpc.RPC;
+import org.track.rpc.Server;
+
+/**
+ * Checks that a hash ring routes a key the same way whatever the order of
+ * its servers, the identity of the key or the process, that adding a
+ * server only moves keys onto it, and that a sharded proxy gives up once
+ * every server has refused it. Exits non-zero on failure.
+ */
+public class HashRingTest implements EchoProtocol {
+
+	private static final int KEYS = 10000;
+
+	private static int failures;
+
+	private static enum Color {
+		RED, GREEN
+	}
+
+	public String echo(String data) {
+		return data;
+	}
+
+	private static void check(String name, boolean ok) {
+		System.out.println((ok ? "ok   " : "FAIL ") + name);
+		if (!ok)
+			failures++;
+	}
+
+	private static InetSocketAddress[] addresses(int count, int port) {
+		InetSocketAddress[] addresses = new InetSocketAddress[count];
+		for (int i = 0; i < count; i++) {
+			addresses[i] = new InetSocketAddress("127.0.0.1", port + i);
+		}
+		return addresses;
+	}
+
+	private static void testStable() {
+		InetSocketAddress[] addresses = addresses(4, 9000);
+		HashRing ring = new HashRing(addresses);
+		InetSocketAddress[] reversed = new InetSocketAddress[4];
+		for (int i = 0; i < 4; i++) {
+			reversed[i] = addresses[3 - i];
+		}
+		HashRing other = new HashRing(reversed);
+		int agreed = 0;
+		for (int i = 0; i < KEYS; i++) {
+			if (ring.getAddress("key" + i).equals(other.getAddress("key" + i)))
+				agreed++;
+		}
+		check("order of servers ignored", agreed == KEYS);
+
+		// fixed by the MD5 of the key, so the same in every process
+		check("same server in every process", ring.getAddress("user-42")
+				.equals(new HashRing(addresses).getAddress("user-42"))
+				&& ring.getAddress("user-42").getPort() == 9003);
+
+		// 70000 is past the boxes Integer caches
+		check("equal keys of different identity", ring.getAddress(
+				new byte[] { 1, 2, 3 }).equals(
+				ring.getAddress(new byte[] { 1, 2, 3 }))
+				&& ring.getAddress(new String[] { "a", "b" }).equals(
+						ring.getAddress(new String[] { "a", "b" }))
+				&& ring.getAddress(new UTF8("a")).equals(
+						ring.getAddress(new UTF8("a")))
+				&& ring.getAddress(Integer.valueOf(70000)).equals(
+						ring.getAddress(Integer.valueOf(70000)))
+				&& ring.getAddress(Color.GREEN).equals(
+						ring.getAddress(Color.GREEN)));
+
+		try {
+			ring.getAddress(new Object());
+			check("key without a stable form rejected", false);
+		} catch (IllegalArgumentException e) {
+			check("key without a stable form rejected", true);
+		}
+	}
+
+	private static void testGrowth() {
+		HashRing ring = new HashRing(addresses(4, 9000));
+		InetSocketAddress[] five = addresses(5, 9000);
+		HashRing grown = new HashRing(five);
+		int moved = 0;
+		int elsewhere = 0;
+		for (int i = 0; i < KEYS; i++) {
+			InetSocketAddress before = ring.getAddress("key" + i);
+			InetSocketAddress after = grown.getAddress("key" + i);
+			if (!before.equals(after)) {
+				moved++;
+				if (!after.equals(five[4]))
+					elsewhere++;
+			}
+		}
+		check("a fifth server takes " + moved + " of " + KEYS + " keys",
+				elsewhere == 0 && moved > KEYS / 10 && moved < KEYS * 3 / 10);
+	}
+
+	private static void testDown() {
+		InetSocketAddress[] addresses = addresses(4, 9000);
+		HashRing ring = new HashRing(addresses);
+		ring.markDown(addresses[0]);
+		boolean routed = true;
+		for (int i = 0; i < KEYS; i++) {
+			routed &= !addresses[0].equals(ring.getAddress("key" + i));
+		}
+		ring.markUp(addresses[0]);
+		check("down server routed around", routed);
+		try {
+			ring.setRetryInterval(0);
+			check("zero retry interval rejected", false);
+		} catch (IllegalArgumentException e) {
+			check("zero retry interval rejected", true);
+		}
+	}
+
+	private static void testSharded(int port) throws Exception {
+		Server server = RPC.getServer(new HashRingTest(), port, 2, 0);
+		server.start();
+		Thread.sleep(200);
+
+		// nothing listens on the ports after the first
+		InetSocketAddress[] addresses = addresses(4, port);
+		EchoProtocol proxy = (EchoProtocol) RPC.getProxy(EchoProtocol.class,
+				new HashRing(addresses), RPC.FIRST_PARAMETER);
+		boolean answered = true;
+		for (int i = 0; i < 20; i++) {
+			answered &= ("key" + i).equals(proxy.echo("key" + i));
+		}
+		check("sharded calls skip refusing servers", answered);
+
+		HashRing dead = new HashRing(addresses(3, port + 1));
+		dead.setRetryInterval(1);
+		proxy = (EchoProtocol) RPC.getProxy(EchoProtocol.class, dead,
+				RPC.FIRST_PARAMETER);
+		try {
+			proxy.echo("key");
+			check("sharded call with every server refusing", false);
+		} catch (UndeclaredThrowableException e) {
+			check("sharded call with every server refusing",
+					e.getCause() instanceof ConnectException);
+		}
+		server.stop();
+	}
+
+	public static void main(String args[]) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8099;
+		testStable();
+		testGrowth();
+		testDown();
+		testSharded(port);
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+}
@@ -0,0 +1,200 @@
+package org.track.test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.track.io.UTF8;
+import org.track.io.Writable;
+import org.track.rpc.Client;
+import org.track.rpc.Server;
+
+/**
+ * Checks that a connection whose peer stopped reading holds up neither the
+ * timeouts nor the heartbeats of other connections: a proxy in front of the
+ * server stops forwarding while a large call is being written through it,
+ * and slow calls straight to the server must still time out on time, each
+ * counted once. Also checks that a server whose call queue is full keeps
+ * answering pings, so that its busy connections are not taken for dead.
+ * Exits non-zero on failure.
+ */
+public class HeartbeatTest extends Server {
+
+	private static int failures;
+	private static volatile boolean frozen;
+
+	/** A param of many bytes that the server is never meant to read. */
+	private static class LargeParam implements Writable {
+		private byte[] data;
+
+		public LargeParam(int size) {
+			this.data = new byte[size];
+		}
+
+		public void write(DataOutput out) throws IOException {
+			out.writeInt(data.length);
+			out.write(data);
+		}
+
+		public void readFields(DataInput in) throws IOException {
+			data = new byte[in.readInt()];
+			in.readFully(data);
+		}
+	}
+
+	public HeartbeatTest(int port, int handlerCount, int readerCount) {
+		super(port, UTF8.class, handlerCount, readerCount);
+	}
+
+	public Writable call(Writable param) throws IOException {
+		long sleep = 0;
+		if ("sleep".equals(param.toString()))
+			sleep = 3000;
+		else if ("pause".equals(param.toString()))
+			sleep = 400;
+		try {
+			Thread.sleep(sleep);
+		} catch (InterruptedException e) {
+		}
+		return param;
+	}
+
+	private static void check(String name, boolean ok) {
+		System.out.println((ok ? "ok   " : "FAIL ") + name);
+		if (!ok)
+			failures++;
+	}
+
+	private static void pipe(final InputStream in, final OutputStream out) {
+		Thread thread = new Thread() {
+			public void run() {
+				byte[] buffer = new byte[8192];
+				try {
+					int count;
+					while ((count = in.read(buffer)) > 0) {
+						out.write(buffer, 0, count);
+						out.flush();
+						while (frozen)
+							Thread.sleep(10);
+					}
+				} catch (Exception e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Forwards from port to target, stopping while frozen is set. */
+	private static void proxy(int port, final int target) throws IOException {
+		final ServerSocket listener = new ServerSocket(port);
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					while (true) {
+						Socket client = listener.accept();
+						Socket server = new Socket("127.0.0.1", target);
+						pipe(client.getInputStream(), server.getOutputStream());
+						pipe(server.getInputStream(), client.getOutputStream());
+					}
+				} catch (IOException e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Sends more slow calls than one handler and a queue of one can take,
+	 * each far longer than two heartbeat intervals.
+	 */
+	private static void testFullQueue(String name, int port, int readers,
+			int reactors) throws Exception {
+		HeartbeatTest server = new HeartbeatTest(port, 1, readers);
+		server.setMaxQueuedCalls(1);
+		server.start();
+		Thread.sleep(200);
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+		Client client = new Client(UTF8.class);
+		client.setReactorCount(reactors);
+		client.setHeartbeatInterval(100);
+		client.callAsync(new UTF8("hello"), address).get();
+
+		CompletableFuture[] futures = new CompletableFuture[4];
+		for (int i = 0; i < futures.length; i++)
+			futures[i] = client.callAsync(new UTF8("pause"), address);
+		int answered = 0;
+		for (int i = 0; i < futures.length; i++) {
+			try {
+				futures[i].get();
+				answered++;
+			} catch (ExecutionException e) {
+			}
+		}
+		check(name + ": " + answered + " of " + futures.length
+				+ " calls through a full queue", answered == futures.length);
+	}
+
+	public static void main(String args[]) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8097;
+		HeartbeatTest server = new HeartbeatTest(port, 2, 0);
+		server.start();
+		proxy(port + 1, port);
+		Thread.sleep(200);
+		InetSocketAddress direct = new InetSocketAddress("127.0.0.1", port);
+		final InetSocketAddress stalled = new InetSocketAddress("127.0.0.1",
+				port + 1);
+
+		final Client client = new Client(UTF8.class);
+		client.setTimeout(1000);
+		client.setHeartbeatInterval(100);
+		client.callAsync(new UTF8("hello"), stalled).get();
+		client.callAsync(new UTF8("hello"), direct).get();
+
+		frozen = true;
+		Thread writer = new Thread() {
+			public void run() {
+				client.callAsync(new LargeParam(30 * 1024 * 1024), stalled);
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		// long enough for the stalled connection to be pinged
+		Thread.sleep(300);
+
+		long start = System.currentTimeMillis();
+		try {
+			client.callAsync(new UTF8("sleep"), direct).get();
+			check("slow call timed out", false);
+		} catch (ExecutionException e) {
+			long elapsed = System.currentTimeMillis() - start;
+			check("slow call timed out in " + elapsed + "ms",
+					e.getCause() instanceof SocketTimeoutException
+							&& elapsed < 2500);
+		}
+
+		long before = client.getTimeoutCount(direct);
+		try {
+			client.call(new UTF8("sleep"), direct);
+			check("blocking call timed out", false);
+		} catch (SocketTimeoutException e) {
+			check("blocking call timed out and was counted", client
+					.getTimeoutCount(direct) == before + 1);
+		}
+
+		testFullQueue("blocking server", port + 2, 0, 0);
+		testFullQueue("reactor server", port + 3, 1, 1);
+
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+}
@@ -0,0 +1,105 @@
+package org.track.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+
+import org.track.rpc.Client;
+import org.track.rpc.RPC;
+import org.track.rpc.Server;
+
+/**
+ * Compares the same-host transports: loopback TCP, a Unix domain socket and
+ * a pair of shared-memory rings. One server per transport runs in this
+ * process; the client treats the rings like any other process would, through
+ * a mapped file. Reports calls per second and the mean round trip, first for
+ * a single caller and then for several at once.
+ */
+public class TransportBenchmark implements EchoProtocol {
+
+	public String echo(String data) {
+		return data;
+	}
+
+	private static void run(String name, InetSocketAddress address,
+			int callers, final int calls, final String payload)
+			throws InterruptedException {
+		final EchoProtocol proxy = (EchoProtocol) RPC.getProxy(
+				EchoProtocol.class, address);
+		for (int i = 0; i < calls / 10; i++) {
+			proxy.echo(payload);
+		}
+
+		Thread[] threads = new Thread[callers];
+		for (int i = 0; i < callers; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < calls; j++) {
+						proxy.echo(payload);
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < callers; i++) {
+			threads[i].start();
+		}
+		for (int i = 0; i < callers; i++) {
+			threads[i].join();
+		}
+		long nanos = System.nanoTime() - start;
+		long total = (long) callers * calls;
+		System.out.println(name + ", " + callers + " callers: "
+				+ (total * 1000000000L / nanos) + " calls/s, "
+				+ (nanos * callers / total / 1000) + "us/call");
+	}
+
+	public static void main(String args[]) throws IOException,
+			InterruptedException {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int callers = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int port = 8095;
+		// private to this user, as ring directories should be
+		String directory = Files.createTempDirectory("track-benchmark")
+				.toString();
+		String socket = new File(directory, "track-benchmark.sock").getPath();
+
+		StringBuffer payload = new StringBuffer();
+		for (int i = 0; i < size; i++) {
+			payload.append((char) ('a' + i % 26));
+		}
+
+		Server tcp = RPC.getServer(new TransportBenchmark(), port, 4, 1);
+		tcp.start();
+		Server unix = RPC.getServer(new TransportBenchmark(), port + 1, 4, 1);
+		unix.setUnixSocket(socket);
+		unix.start();
+		Server ring = RPC.getServer(new TransportBenchmark(), port + 2, 4, 1);
+		ring.setSharedMemory(directory);
+		ring.start();
+		Thread.sleep(500);
+
+		// only the third server accepts rings; the others decline them
+		InetSocketAddress tcpAddress = new InetSocketAddress("127.0.0.1",
+				port);
+		InetSocketAddress unixAddress = new InetSocketAddress("127.0.0.1",
+				port + 1);
+		InetSocketAddress ringAddress = new InetSocketAddress("127.0.0.1",
+				port + 2);
+		Client client = RPC.getClient();
+		client.setUnixSocket(unixAddress, socket);
+		client.setSharedMemory(1 << 20, directory);
+
+		System.out.println(calls + " calls of " + size + " chars each");
+		run("tcp", tcpAddress, 1, calls, payload.toString());
+		run("unix", unixAddress, 1, calls, payload.toString());
+		run("ring", ringAddress, 1, calls, payload.toString());
+		run("tcp", tcpAddress, callers, calls, payload.toString());
+		run("unix", unixAddress, callers, calls, payload.toString());
+		run("ring", ringAddress, callers, calls, payload.toString());
+		System.exit(0);
+	}
+
+}